@@ -0,0 +1,34 @@
+package itsec.dh;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of <code>benchmarks.jar</code>. Accepts the usual JMH command
+ * line (e.g. <code>-prof gc</code> for allocation rates), but writes the
+ * results as JSON to <code>jmh-result.json</code> unless another result
+ * format is requested, so runs of different releases can be compared.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cli = new CommandLineOptions(args);
+
+		if (cli.shouldHelp() || cli.shouldList() || cli.shouldListWithParams() || cli.shouldListProfilers()
+				|| cli.shouldListResultFormats()) {
+			Main.main(args);
+			return;
+		}
+
+		OptionsBuilder options = new OptionsBuilder();
+		options.parent(cli);
+		if (!cli.getResultFormat().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+		}
+
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,54 @@
+package itsec.dh;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Key pair generation and key agreement of one handshake in curve mode. The
+ * scores compare with <code>ModpBenchmark.montgomeryHandshake</code>: X25519
+ * offers about the strength of the 3072-bit MODP group, X448 exceeds the one
+ * of the 4096-bit group.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CurveBenchmark {
+
+	@Param({ "X25519", "X448" })
+	public String curve;
+
+	private NamedCurve namedCurve;
+	private byte[] theirKey;
+
+	@Setup
+	public void setup() {
+		namedCurve = NamedCurve.valueOf(curve);
+		theirKey = NamedCurve.publicKey(namedCurve.generateKeyPair()).toByteArray();
+	}
+
+	@Benchmark
+	public KeyPair keyPair() {
+		return namedCurve.generateKeyPair();
+	}
+
+	@Benchmark
+	public byte[] handshake() {
+		KeyPair ourKeys = namedCurve.generateKeyPair();
+		return namedCurve.sharedSecret(ourKeys.getPrivate(), theirKey, theirKey.length);
+	}
+}
@@ -0,0 +1,93 @@
+package itsec.dh;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the primitive exponentiation engines of <code>ModExp</code> and the
+ * fixed-base tables of <code>FixedBaseCache</code> with the
+ * <code>BigInteger.modPow()</code> path. Run with <code>-prof gc</code>
+ * to see the allocation rate of each engine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpmodBenchmark {
+
+	private static final int VALUES = 1024;
+
+	/**
+	 * Modulus: the range used by activeMode today, and a prime just below
+	 * 2^31 as the largest supported case.
+	 */
+	@Param({ "10007", "2147483629" })
+	public int mod;
+
+	/**
+	 * Exponent: a secret x as drawn today, and a full-width exponent.
+	 */
+	@Param({ "99", "2147483647" })
+	public long exp;
+
+	private long[] bases;
+	private int index;
+
+	private final FixedBaseCache cache = new FixedBaseCache(16);
+
+	@Setup
+	public void setup() {
+		SplittableRandom rng = new SplittableRandom(42);
+		bases = new long[VALUES];
+		for (int i = 0; i < VALUES; i++) {
+			bases[i] = rng.nextLong(1, mod);
+		}
+	}
+
+	private long nextBase() {
+		index = (index + 1) & (VALUES - 1);
+		return bases[index];
+	}
+
+	@Benchmark
+	public long bigInteger() {
+		return ModExp.bigInteger(nextBase(), exp, mod);
+	}
+
+	@Benchmark
+	public long squareMultiply() {
+		return ModExp.squareMultiply(nextBase(), exp, mod);
+	}
+
+	@Benchmark
+	public long montgomery() {
+		return ModExp.montgomery(nextBase(), exp, mod);
+	}
+
+	/**
+	 * Generator exponentiation with a warm fixed-base table.
+	 */
+	@Benchmark
+	public long fixedBase() {
+		return cache.pow(5, exp, mod);
+	}
+
+	@Benchmark
+	public long expmod() {
+		return Peer.expmod(nextBase(), exp, mod);
+	}
+}
@@ -0,0 +1,134 @@
+package itsec.dh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A complete PROP/ACK/KEY/KEY exchange between an active and a passive
+ * session in one JVM, with the console output of the sessions discarded. The
+ * sessions are connected by the in-memory loopback transport, by a pair of
+ * pipes or by a TCP connection over the loopback interface. The score of the
+ * in-memory transport is the number of exchanges per second of the protocol
+ * itself; the difference to the others is the cost of the kernel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+
+	@Param({ "TEXT", "BINARY" })
+	public String format;
+
+	@Param({ "memory", "pipe", "tcp" })
+	public String transport;
+
+	private ServerSocket server;
+	private ExecutorService passivePeer;
+	private PrintStream stdout;
+
+	@Setup
+	public void setup() throws IOException {
+		if (transport.equals("tcp")) {
+			server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		}
+		passivePeer = Executors.newSingleThreadExecutor();
+		stdout = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		System.setOut(stdout);
+		if (server != null) {
+			server.close();
+		}
+		passivePeer.shutdownNow();
+	}
+
+	@Benchmark
+	public long exchange() throws Exception {
+		Future<HandshakeSession> accepted;
+		HandshakeSession active;
+		switch (transport) {
+		case "memory":
+			Transport[] loopback = Transport.loopback(4096);
+			accepted = CompletableFuture.completedFuture(new HandshakeSession(loopback[1]));
+			active = new HandshakeSession(loopback[0]);
+			break;
+		case "pipe":
+			Pipe toPassive = Pipe.open();
+			Pipe toActive = Pipe.open();
+			accepted = CompletableFuture.completedFuture(session(toPassive.source(), toActive.sink()));
+			active = session(toActive.source(), toPassive.sink());
+			break;
+		default:
+			accepted = passivePeer.submit(() -> new HandshakeSession(server.accept()));
+			Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+			socket.setTcpNoDelay(true);
+			active = new HandshakeSession(socket);
+		}
+
+		HandshakeSession passive = accepted.get();
+		Future<Long> passiveKey = passivePeer.submit(() -> {
+			try (passive) {
+				passive.awaitProposal();
+				passive.generateKey(RandomSource.DEFAULT);
+				passive.exchangeKeys();
+				return passive.sharedKey();
+			}
+		});
+
+		try (active) {
+			active.format(WireFormat.valueOf(format));
+			active.propose(5, 10007);
+			if (!active.awaitAck()) {
+				throw new IllegalStateException("The proposal was not acknowledged.");
+			}
+			active.generateKey(RandomSource.DEFAULT);
+			active.exchangeKeys();
+
+			long sharedKey = active.sharedKey();
+			if (sharedKey != passiveKey.get()) {
+				throw new IllegalStateException("Shared keys differ.");
+			}
+			return sharedKey;
+		}
+	}
+
+	private static HandshakeSession session(Pipe.SourceChannel in, Pipe.SinkChannel out) {
+		InputStream inputStream = Channels.newInputStream(in);
+		OutputStream outputStream = Channels.newOutputStream(out);
+		return new HandshakeSession(inputStream, outputStream, () -> {
+			in.close();
+			out.close();
+		});
+	}
+}
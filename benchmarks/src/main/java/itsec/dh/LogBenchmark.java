@@ -0,0 +1,63 @@
+package itsec.dh;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a log line for the handshake threads: printing to the synchronized
+ * <code>System.out</code> against putting it into the ring buffer of
+ * <code>Log</code>. The console is replaced by a stream discarding all
+ * output, so only the contention and the hand-over are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class LogBenchmark {
+
+	private PrintStream stdout;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		stdout = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		System.setOut(stdout);
+	}
+
+	@Benchmark
+	public void console() {
+		System.out.println("Received data by peer: KEY 1234567890");
+	}
+
+	@Benchmark
+	public void ring() {
+		Log.DEFAULT.info("Received data by peer: KEY 1234567890");
+	}
+
+	@Benchmark
+	public void disabled() {
+		Log.DEFAULT.trace("Received data by peer: ", "KEY 1234567890");
+	}
+}
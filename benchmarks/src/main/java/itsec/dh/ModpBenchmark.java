@@ -0,0 +1,98 @@
+package itsec.dh;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Exponentiations of one handshake in the RFC 3526 MODP groups: our key
+ * g^x mod p and the shared key y^x mod p with a secret of the group's
+ * exponent size. <code>MontgomeryContext</code> is compared with plain
+ * <code>BigInteger.modPow()</code>; <code>handshake</code> covers both
+ * exponentiations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModpBenchmark {
+
+	@Param({ "14", "15", "16" })
+	public int group;
+
+	private MontgomeryContext context;
+	private BigInteger p;
+	private BigInteger g;
+
+	private BigInteger x;
+	private BigInteger y;
+
+	private long[] limbsX;
+	private long[] limbsY;
+	private long[] result;
+
+	@Setup
+	public void setup() {
+		ModpGroup modp = ModpGroup.byId(group);
+		context = modp.context();
+		p = modp.parameters().p();
+		g = modp.parameters().g();
+
+		Random rng = new Random(42);
+		x = new BigInteger(modp.exponentBits, rng);
+		y = new BigInteger(p.bitLength() - 1, rng);
+
+		limbsX = MontgomeryContext.toLimbs(x, modp.exponentBits / 64);
+		limbsY = MontgomeryContext.toLimbs(y, context.limbs());
+		result = context.newResidue();
+	}
+
+	@Benchmark
+	public BigInteger modPowKey() {
+		return g.modPow(x, p);
+	}
+
+	@Benchmark
+	public long[] montgomeryKey() {
+		context.powGenerator(limbsX, result);
+		return result;
+	}
+
+	@Benchmark
+	public BigInteger modPowShared() {
+		return y.modPow(x, p);
+	}
+
+	@Benchmark
+	public long[] montgomeryShared() {
+		context.pow(limbsY, limbsX, result);
+		return result;
+	}
+
+	@Benchmark
+	public BigInteger modPowHandshake() {
+		g.modPow(x, p);
+		return y.modPow(x, p);
+	}
+
+	@Benchmark
+	public long[] montgomeryHandshake() {
+		context.powGenerator(limbsX, result);
+		context.pow(limbsY, limbsX, result);
+		return result;
+	}
+}
@@ -0,0 +1,73 @@
+package itsec.dh;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of received messages: the String-based <code>operation()</code> and
+ * <code>tokenize()</code> of <code>Peer</code>, and the in-place parsing of
+ * <code>Message</code> as used by the sessions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+	public String prop = "PROP 4711 10007";
+	public String key = "KEY 1234567";
+
+	private final ByteBuffer propBytes = ByteBuffer.wrap(prop.getBytes(StandardCharsets.US_ASCII));
+	private final ByteBuffer keyBytes = ByteBuffer.wrap(key.getBytes(StandardCharsets.US_ASCII));
+	private final Message message = new Message();
+
+	@Benchmark
+	public String operation() {
+		return Peer.operation(key);
+	}
+
+	@Benchmark
+	public int parseProp() {
+		String[] tokenized = Peer.tokenize(prop, " ");
+		return Integer.parseInt(tokenized[1]) + Integer.parseInt(tokenized[2]);
+	}
+
+	/**
+	 * Receiving a key: the command check followed by a second tokenization
+	 * for the value.
+	 */
+	@Benchmark
+	public long parseKey() {
+		if (!Peer.operation(key).equals("KEY")) {
+			throw new IllegalArgumentException("Expected key payload.");
+		}
+		return Long.valueOf(Peer.tokenize(key, " ")[1]);
+	}
+
+	@Benchmark
+	public int messageProp() {
+		message.parse(propBytes, 0, propBytes.limit());
+		return message.a() + message.n();
+	}
+
+	@Benchmark
+	public long messageKey() {
+		if (message.parse(keyBytes, 0, keyBytes.limit()) != Message.KEY) {
+			throw new IllegalArgumentException("Expected key payload.");
+		}
+		return message.key();
+	}
+}
@@ -0,0 +1,72 @@
+package itsec.dh;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the secret x per handshake with 64 handshakes running concurrently,
+ * for every <code>RandomSource</code> and for a new <code>SecureRandom</code>
+ * per handshake (<code>newInstance</code>) as the drivers originally did.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class RandomBenchmark {
+
+	@Param({ "newInstance", "perThread", "striped", "buffered" })
+	public String source;
+
+	private RandomSource rng;
+
+	@Setup
+	public void setup() {
+		switch (source) {
+		case "newInstance":
+			rng = new RandomSource() {
+				@Override
+				public int nextInt(int bound) {
+					return new SecureRandom().nextInt(bound);
+				}
+
+				@Override
+				public void nextBytes(byte[] bytes) {
+					new SecureRandom().nextBytes(bytes);
+				}
+			};
+			break;
+		case "perThread":
+			rng = RandomSource.perThread(RandomSource.STRENGTH);
+			break;
+		case "striped":
+			rng = RandomSource.striped(RandomSource.STRENGTH, Runtime.getRuntime().availableProcessors());
+			break;
+		case "buffered":
+			rng = RandomSource.buffered(RandomSource.STRENGTH, 4096);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown source " + source + ".");
+		}
+	}
+
+	@Benchmark
+	public int secret() {
+		return rng.nextSecret(10007);
+	}
+}
@@ -0,0 +1,63 @@
+package itsec.dh;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generation of the secret x: with a new <code>SecureRandom</code> per
+ * handshake as in the drivers, and with one long-lived instance. The key pair
+ * variants compare generating x and y inline with taking them from a
+ * <code>KeyPairPool</code>; a single taking thread may outrun the worker, in
+ * which case the score includes the depletions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecretBenchmark {
+
+	private final SecureRandom rng = new SecureRandom();
+	private final KeyPairPool pool = new KeyPairPool();
+
+	private int a = 5;
+	private int n = 10007;
+
+	@TearDown
+	public void tearDown() {
+		pool.close();
+	}
+
+	@Benchmark
+	public int perHandshake() {
+		return new SecureRandom().nextInt(n - 3) + 2;
+	}
+
+	@Benchmark
+	public int shared() {
+		return rng.nextInt(n - 3) + 2;
+	}
+
+	@Benchmark
+	public long keyPairInline() {
+		int x = rng.nextInt(n - 3) + 2;
+		return ((long) x << 32) | FixedBaseCache.DEFAULT.pow(a, x, n);
+	}
+
+	@Benchmark
+	public long keyPairPooled() {
+		return pool.take(a, n);
+	}
+}
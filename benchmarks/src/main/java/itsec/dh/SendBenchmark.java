@@ -0,0 +1,58 @@
+package itsec.dh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and writing of outgoing messages through a
+ * <code>HandshakeSession</code> in both wire formats. The session writes to a
+ * discarding stream, so only the encoding is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendBenchmark {
+
+	@Param({ "TEXT", "BINARY" })
+	public String format;
+
+	private HandshakeSession session;
+
+	private int a = 4711;
+	private int n = 10007;
+	private long key = 1234567;
+
+	@Setup
+	public void setup() {
+		session = new HandshakeSession(InputStream.nullInputStream(), OutputStream.nullOutputStream(), () -> {
+		});
+		session.format(WireFormat.valueOf(format));
+	}
+
+	@Benchmark
+	public void prop() throws IOException {
+		session.propose(a, n);
+	}
+
+	@Benchmark
+	public void key() throws IOException {
+		session.sendKey(key);
+	}
+}
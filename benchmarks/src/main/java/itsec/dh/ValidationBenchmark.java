@@ -0,0 +1,55 @@
+package itsec.dh;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Validation of a proposal (a, n) on the passive side: the primality and
+ * primitive root tests themselves, and a repeated proposal answered from the
+ * cache of <code>ParameterValidator</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+
+	/**
+	 * Safe primes with their smallest primitive root.
+	 */
+	@Param({ "10007", "2147483579" })
+	public int n;
+
+	private int a;
+
+	private final ParameterValidator validator = new ParameterValidator(1024);
+
+	@Setup
+	public void setup() {
+		a = SafePrimeGenerator.generator(BigInteger.valueOf(n)).intValueExact();
+	}
+
+	@Benchmark
+	public boolean uncached() {
+		return ParameterValidator.isPrime(n) && ParameterValidator.isPrimitiveRoot(a, n);
+	}
+
+	@Benchmark
+	public boolean cached() {
+		return validator.isValid(a, n);
+	}
+}
@@ -0,0 +1,319 @@
+package itsec.dh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Programmatic, non-blocking active peer. <code>initiate()</code> runs a
+ * complete exchange on a new connection and returns the future of its shared
+ * key, so a caller can run thousands of key agreements at once without
+ * blocking a thread on any of them.
+ *
+ * All connections are driven by one <code>Reactor</code>. The keys of
+ * protocol-size groups are computed on the loop; those of MODP groups and
+ * curves take up to milliseconds and are computed on an executor, so they do
+ * not hold up the other connections.
+ *
+ * A future fails with a <code>CompletionException</code> whose cause is an
+ * <code>IOException</code> if the connection failed or timed out, or an
+ * <code>IllegalArgumentException</code> if the passive peer refused the
+ * proposal or sent an invalid key. No method throws for bad input; it fails
+ * the returned future instead.
+ */
+final class AsyncPeer implements Closeable {
+
+	private final Reactor reactor;
+	private final WireFormat format;
+	private final Executor crypto;
+	private final int connectTimeout;
+	private final int readTimeout;
+
+	/**
+	 * Creates a peer with its own loop, which computes big keys on the common
+	 * pool and uses the timeouts of <code>ConnectionPool</code>.
+	 *
+	 * @param format
+	 *            Wire format of all exchanges.
+	 * @throws IOException
+	 *             If the loop could not be started.
+	 */
+	AsyncPeer(WireFormat format) throws IOException {
+		this(new Reactor("async-peer"), format, ForkJoinPool.commonPool(), ConnectionPool.connectTimeout(),
+				ConnectionPool.readTimeout());
+	}
+
+	/**
+	 * @param reactor
+	 *            Loop to drive the connections. It is closed along with the
+	 *            peer.
+	 * @param format
+	 *            Wire format of all exchanges.
+	 * @param crypto
+	 *            Executor for the keys of MODP groups and curves.
+	 * @param connectTimeout
+	 *            Timeout of connecting in milliseconds, 0 for none.
+	 * @param readTimeout
+	 *            Timeout of waiting for a message in milliseconds, 0 for none.
+	 */
+	AsyncPeer(Reactor reactor, WireFormat format, Executor crypto, int connectTimeout, int readTimeout) {
+		this.reactor = reactor;
+		this.format = format;
+		this.crypto = crypto;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Agrees on a key in a protocol-size group.
+	 *
+	 * @param address
+	 *            Address of the passive peer.
+	 * @param group
+	 *            Group to propose, with a and n as int.
+	 * @return Future of the shared key. It fails with
+	 *         <code>ArithmeticException</code> at once if a or n does not fit
+	 *         into an int.
+	 */
+	CompletableFuture<SharedKey> initiate(InetSocketAddress address, GroupParameters group) {
+		SmallGroup agreement;
+		try {
+			agreement = new SmallGroup(group.a(), group.n());
+		} catch (ArithmeticException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return initiate(address, agreement);
+	}
+
+	/**
+	 * Agrees on a key in a MODP group of RFC 3526 (big-modulus mode).
+	 */
+	CompletableFuture<SharedKey> initiate(InetSocketAddress address, ModpGroup group) {
+		return initiate(address, new BigGroup(group));
+	}
+
+	/**
+	 * Agrees on a key by XDH on a curve (curve mode).
+	 */
+	CompletableFuture<SharedKey> initiate(InetSocketAddress address, NamedCurve curve) {
+		return initiate(address, new Curve(curve));
+	}
+
+	private CompletableFuture<SharedKey> initiate(InetSocketAddress address, Agreement agreement) {
+		Executor compute = agreement.cheap() ? reactor : crypto;
+
+		return MessageChannel.connect(reactor, address, format, connectTimeout, readTimeout).thenCompose(channel -> {
+			long start = System.nanoTime();
+
+			CompletableFuture<SharedKey> sharedKey = channel.send(agreement::propose)
+					.thenCompose(sent -> channel.receive())
+					.thenApplyAsync(answer -> {
+						Metrics.DEFAULT.proposal.recordSince(start);
+						if (answer.type() != Message.ACK) {
+							Metrics.DEFAULT.naks.increment();
+							throw new IllegalArgumentException("The proposal was not acknowledged.");
+						}
+						long generation = System.nanoTime();
+						agreement.generate();
+						Metrics.DEFAULT.keyGeneration.recordSince(generation);
+						return null;
+					}, compute)
+					.thenCompose(generated -> {
+						long exchange = System.nanoTime();
+						CompletableFuture<Void> sent = channel.send(agreement::key);
+						return channel.receive().thenCombine(sent, (theirKey, done) -> {
+							Metrics.DEFAULT.keyExchange.recordSince(exchange);
+							return theirKey;
+						});
+					})
+					.thenApplyAsync(theirKey -> {
+						if (theirKey.type() != Message.KEY) {
+							throw new IllegalArgumentException("Expected key payload.");
+						}
+						return agreement.derive(address, theirKey);
+					}, compute);
+
+			return sharedKey.whenComplete((key, failure) -> {
+				channel.close();
+				if (key != null) {
+					Metrics.DEFAULT.handshake.recordSince(start);
+					Metrics.DEFAULT.handshakes.increment();
+				}
+			});
+		});
+	}
+
+	/**
+	 * Stops the loop, which fails all exchanges in progress.
+	 */
+	@Override
+	public void close() {
+		reactor.close();
+	}
+
+	/**
+	 * Key material of one exchange in one of the three modes.
+	 */
+	private abstract static class Agreement {
+
+		/**
+		 * @return Whether the keys are cheap enough to compute on the loop.
+		 */
+		abstract boolean cheap();
+
+		abstract void propose(WireFormat format, ByteBuffer out);
+
+		abstract void generate();
+
+		abstract void key(WireFormat format, ByteBuffer out);
+
+		/**
+		 * @throws IllegalArgumentException
+		 *             If their key is invalid.
+		 */
+		abstract SharedKey derive(InetSocketAddress peer, Message theirKey);
+	}
+
+	private static final class SmallGroup extends Agreement {
+
+		private final int a;
+		private final int n;
+		private int x;
+		private long ourKey;
+
+		SmallGroup(int a, int n) {
+			this.a = a;
+			this.n = n;
+		}
+
+		@Override
+		boolean cheap() {
+			return true;
+		}
+
+		@Override
+		void propose(WireFormat format, ByteBuffer out) {
+			format.prop(out, Message.NO_ID, a, n);
+		}
+
+		@Override
+		void generate() {
+			x = RandomSource.DEFAULT.nextSecret(n);
+			ourKey = FixedBaseCache.DEFAULT.pow(a, x, n);
+		}
+
+		@Override
+		void key(WireFormat format, ByteBuffer out) {
+			format.key(out, Message.NO_ID, ourKey);
+		}
+
+		@Override
+		SharedKey derive(InetSocketAddress peer, Message theirKey) {
+			long key = theirKey.key();
+			if (key <= 0) {
+				throw new IllegalArgumentException("Expected their key to be > 0");
+			}
+			return SharedKey.of(peer, Message.NO_ID, a, n, Peer.expmod(key, x, n));
+		}
+	}
+
+	private static final class BigGroup extends Agreement {
+
+		private final ModpGroup group;
+		private long[] x;
+		private long[] ourKey;
+
+		BigGroup(ModpGroup group) {
+			this.group = group;
+		}
+
+		@Override
+		boolean cheap() {
+			return false;
+		}
+
+		@Override
+		void propose(WireFormat format, ByteBuffer out) {
+			format.modp(out, Message.NO_ID, group.id);
+		}
+
+		@Override
+		void generate() {
+			MontgomeryContext context = group.context();
+			byte[] secret = new byte[group.exponentBits / 8];
+			RandomSource.DEFAULT.nextBytes(secret);
+			x = new long[group.exponentBits / 64];
+			context.decode(secret, secret.length, x);
+
+			ourKey = context.newResidue();
+			context.powGenerator(x, ourKey);
+		}
+
+		@Override
+		void key(WireFormat format, ByteBuffer out) {
+			byte[] magnitude = new byte[8 * ourKey.length];
+			format.key(out, Message.NO_ID, magnitude, MontgomeryContext.encode(ourKey, magnitude));
+		}
+
+		@Override
+		SharedKey derive(InetSocketAddress peer, Message theirKey) {
+			MontgomeryContext context = group.context();
+			long[] key = context.newResidue();
+			if (theirKey.keyLength() == 0 || !context.decode(theirKey.keyMagnitude(), theirKey.keyLength(), key)
+					|| !context.isValidKey(key)) {
+				throw new IllegalArgumentException("Expected their key to be > 1 and < p - 1");
+			}
+			long[] sharedKey = context.newResidue();
+			context.pow(key, x, sharedKey);
+			BigInteger value = MontgomeryContext.toBigInteger(sharedKey);
+			return SharedKey.of(peer, Message.NO_ID, group, value);
+		}
+	}
+
+	private static final class Curve extends Agreement {
+
+		private final NamedCurve curve;
+		private KeyPair keys;
+
+		Curve(NamedCurve curve) {
+			this.curve = curve;
+		}
+
+		@Override
+		boolean cheap() {
+			return false;
+		}
+
+		@Override
+		void propose(WireFormat format, ByteBuffer out) {
+			format.curve(out, Message.NO_ID, curve);
+		}
+
+		@Override
+		void generate() {
+			keys = curve.generateKeyPair();
+		}
+
+		@Override
+		void key(WireFormat format, ByteBuffer out) {
+			byte[] magnitude = NamedCurve.publicKey(keys).toByteArray();
+			format.key(out, Message.NO_ID, magnitude, magnitude.length);
+		}
+
+		@Override
+		SharedKey derive(InetSocketAddress peer, Message theirKey) {
+			if (theirKey.keyLength() == 0 || theirKey.keyLength() > curve.keyLength) {
+				throw new IllegalArgumentException("Expected their key to have at most " + curve.keyLength
+						+ " bytes");
+			}
+			byte[] key = curve.sharedSecret(keys.getPrivate(), theirKey.keyMagnitude(), theirKey.keyLength());
+			return SharedKey.of(peer, Message.NO_ID, curve, key);
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package itsec.dh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connections of an active peer to its passive peers, kept open between key
+ * exchanges. Peers which renegotiate keys with the same passive peer often
+ * thereby skip the TCP handshake and the setup of a new socket.
+ *
+ * <code>acquire()</code> hands out an idle connection to the destination, or
+ * connects a new one, as a <code>Lease</code>. Every exchange on a leased
+ * connection is tagged with an exchange ID, so that the passive peer keeps
+ * the connection open. Closing the lease returns the connection to the pool
+ * if its exchange completed, and closes it otherwise. Idle connections which
+ * the passive peer closed meanwhile, or which were idle for too long, are
+ * dropped when they are next acquired. <code>warm()</code> opens connections
+ * in advance.
+ *
+ * Connecting is non-blocking with a timeout, see <code>connect()</code>.
+ * Once connected, the channel is used in blocking mode with a read timeout.
+ */
+final class ConnectionPool implements Closeable {
+
+	/**
+	 * System property with the connect timeout in milliseconds.
+	 */
+	static final String CONNECT_TIMEOUT_PROPERTY = "itsec.dh.connect.timeout";
+
+	/**
+	 * System property with the read timeout in milliseconds.
+	 */
+	static final String READ_TIMEOUT_PROPERTY = "itsec.dh.read.timeout";
+
+	/**
+	 * System property with the time in milliseconds a passive peer waits for
+	 * the next message of a connection before it drops the connection.
+	 */
+	static final String IDLE_TIMEOUT_PROPERTY = "itsec.dh.idle.timeout";
+
+	static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	static final int DEFAULT_READ_TIMEOUT = 10000;
+	static final int DEFAULT_IDLE_TIMEOUT = 60000;
+
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int maxIdle;
+	private final long idleNanos;
+
+	/**
+	 * Idle connections by destination, the most recently used first.
+	 */
+	private final Map<InetSocketAddress, ConcurrentLinkedDeque<Lease>> idle = new ConcurrentHashMap<>();
+
+	private final LongAdder reused = Metrics.DEFAULT.counter("pool_reused_total",
+			"Exchanges on a pooled connection.");
+	private final LongAdder connected = Metrics.DEFAULT.counter("pool_connected_total",
+			"Connections opened by the pool.");
+
+	private volatile boolean closed;
+
+	/**
+	 * Creates a pool with the timeouts of the system properties
+	 * <code>itsec.dh.connect.timeout</code> and
+	 * <code>itsec.dh.read.timeout</code>, which keeps up to 8 idle connections
+	 * per destination for half the idle timeout of the passive peers, so they
+	 * are dropped before the passive peer drops them.
+	 */
+	ConnectionPool() {
+		this(connectTimeout(), readTimeout(), 8, idleTimeout() / 2);
+	}
+
+	/**
+	 * @param connectTimeout
+	 *            Timeout of connecting in milliseconds, 0 for none.
+	 * @param readTimeout
+	 *            Timeout of waiting for a message in milliseconds, 0 for none.
+	 * @param maxIdle
+	 *            Maximum number of idle connections per destination.
+	 * @param idleTimeout
+	 *            Time in milliseconds after which an idle connection is
+	 *            dropped, 0 for none.
+	 */
+	ConnectionPool(int connectTimeout, int readTimeout, int maxIdle, long idleTimeout) {
+		if (connectTimeout < 0 || readTimeout < 0 || maxIdle < 0 || idleTimeout < 0) {
+			throw new IllegalArgumentException("Expected timeouts and limits to be >= 0");
+		}
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.maxIdle = maxIdle;
+		this.idleNanos = idleTimeout * 1000000;
+	}
+
+	/**
+	 * @return The connect timeout of the system property, or the default.
+	 */
+	static int connectTimeout() {
+		return Integer.getInteger(CONNECT_TIMEOUT_PROPERTY, DEFAULT_CONNECT_TIMEOUT);
+	}
+
+	/**
+	 * @return The read timeout of the system property, or the default.
+	 */
+	static int readTimeout() {
+		return Integer.getInteger(READ_TIMEOUT_PROPERTY, DEFAULT_READ_TIMEOUT);
+	}
+
+	/**
+	 * @return The idle timeout of the system property, or the default.
+	 */
+	static int idleTimeout() {
+		return Integer.getInteger(IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Connects a channel without blocking on the TCP handshake beyond the
+	 * timeout. The connected channel is in blocking mode, with Nagle's
+	 * algorithm disabled.
+	 *
+	 * @param address
+	 *            Destination.
+	 * @param timeout
+	 *            Timeout in milliseconds, 0 for none.
+	 * @throws SocketTimeoutException
+	 *             If the connection was not established in time. It is
+	 *             counted in <code>Metrics.timeouts</code>.
+	 * @throws IOException
+	 *             If the connection was refused or failed otherwise.
+	 */
+	static SocketChannel connect(InetSocketAddress address, int timeout) throws IOException {
+		long start = System.nanoTime();
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.configureBlocking(false);
+			if (!channel.connect(address)) {
+				try (Selector selector = Selector.open()) {
+					channel.register(selector, SelectionKey.OP_CONNECT);
+					if (selector.select(timeout) == 0) {
+						Metrics.DEFAULT.timeouts.increment();
+						throw new SocketTimeoutException("Connecting to " + address + " timed out.");
+					}
+				}
+				channel.finishConnect();
+			}
+			// closing the selector deregistered the channel
+			channel.configureBlocking(true);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		Metrics.DEFAULT.connect.recordSince(start);
+		return channel;
+	}
+
+	/**
+	 * Leases a connection to the destination, preferably an idle one.
+	 *
+	 * @throws IOException
+	 *             If a new connection could not be established.
+	 */
+	Lease acquire(InetSocketAddress address) throws IOException {
+		if (closed) {
+			throw new IOException("Connection pool closed.");
+		}
+
+		ConcurrentLinkedDeque<Lease> connections = idle.get(address);
+		if (connections != null) {
+			long now = System.nanoTime();
+			Lease lease;
+			while ((lease = connections.pollFirst()) != null) {
+				if ((idleNanos == 0 || now - lease.idleSince < idleNanos) && lease.isOpen()) {
+					reused.increment();
+					lease.session.reset();
+					return lease;
+				}
+				lease.discard();
+			}
+		}
+
+		Lease lease = open(address);
+		lease.session.reset();
+		return lease;
+	}
+
+	/**
+	 * Opens connections to the destination until the given number is idle.
+	 *
+	 * @return Number of idle connections to the destination, at most
+	 *         <code>maxIdle</code>.
+	 * @throws IOException
+	 *             If a connection could not be established.
+	 */
+	int warm(InetSocketAddress address, int count) throws IOException {
+		ConcurrentLinkedDeque<Lease> connections = connections(address);
+		count = Math.min(count, maxIdle);
+		while (connections.size() < count && !closed) {
+			Lease lease = open(address);
+			lease.idleSince = System.nanoTime();
+			connections.offerLast(lease);
+		}
+		return connections.size();
+	}
+
+	private Lease open(InetSocketAddress address) throws IOException {
+		SocketChannel channel = connect(address, connectTimeout);
+		try {
+			channel.socket().setSoTimeout(readTimeout);
+			connected.increment();
+			return new Lease(address, channel, new HandshakeSession(channel.socket()));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private ConcurrentLinkedDeque<Lease> connections(InetSocketAddress address) {
+		return idle.computeIfAbsent(address, key -> new ConcurrentLinkedDeque<>());
+	}
+
+	/**
+	 * Returns the connection of a lease, or closes it if the pool is full.
+	 */
+	private void release(Lease lease) {
+		ConcurrentLinkedDeque<Lease> connections = connections(lease.address);
+		if (closed || connections.size() >= maxIdle) {
+			lease.discard();
+			return;
+		}
+		lease.idleSince = System.nanoTime();
+		connections.offerFirst(lease);
+		if (closed) {
+			// lost the race with close()
+			connections.remove(lease);
+			lease.discard();
+		}
+	}
+
+	/**
+	 * Closes all idle connections. Leased connections are closed on their
+	 * return.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (ConcurrentLinkedDeque<Lease> connections : idle.values()) {
+			Lease lease;
+			while ((lease = connections.pollFirst()) != null) {
+				lease.discard();
+			}
+		}
+	}
+
+	/**
+	 * A connection lent to a single exchange at a time. Closing the lease
+	 * returns the connection to the pool if the exchange completed.
+	 */
+	final class Lease implements Closeable {
+
+		private final InetSocketAddress address;
+		private final SocketChannel channel;
+		private final HandshakeSession session;
+		private long idleSince;
+
+		/**
+		 * Single byte for the check whether the peer closed the connection.
+		 */
+		private final ByteBuffer probe = ByteBuffer.allocate(1);
+
+		private Lease(InetSocketAddress address, SocketChannel channel, HandshakeSession session) {
+			this.address = address;
+			this.channel = channel;
+			this.session = session;
+		}
+
+		/**
+		 * @return The session on the connection, reset for the next exchange.
+		 */
+		HandshakeSession session() {
+			return session;
+		}
+
+		InetSocketAddress address() {
+			return address;
+		}
+
+		/**
+		 * Checks without blocking that the peer has neither closed the idle
+		 * connection nor sent anything unexpected on it.
+		 */
+		private boolean isOpen() {
+			try {
+				channel.configureBlocking(false);
+				probe.clear();
+				int read = channel.read(probe);
+				channel.configureBlocking(true);
+				return read == 0;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		private void discard() {
+			try {
+				session.close();
+			} catch (IOException e) {
+				// nothing to save
+			}
+		}
+
+		@Override
+		public void close() {
+			if (session.completed()) {
+				release(this);
+			} else {
+				discard();
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package itsec.dh;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Precomputed fixed-base tables for the exponentiation a^x mod n with the
+ * generator a of a session. For a table with window width w, entry [i][d]
+ * holds a^(d * 2^(w*i)) mod n, so a^x is the product of one entry per w-bit
+ * digit of x and no squarings are needed.
+ *
+ * Tables are kept per (a, n) in a direct-mapped cache: an array of slots
+ * indexed by a hash of (a, n), where a new table evicts the one of its slot.
+ * A lookup reads a single slot without locks or boxing, so concurrent
+ * sessions do not contend on a hit. The hit and miss counters, exported as <code>fixed_base_hits_total</code> and
+ * <code>fixed_base_misses_total</code> of <code>Metrics.DEFAULT</code>, tell
+ * whether the capacity fits the number of parameter sets in use.
+ */
+final class FixedBaseCache {
+
+	/**
+	 * Cache shared by all sessions of this JVM.
+	 */
+	static final FixedBaseCache DEFAULT = new FixedBaseCache(1024);
+
+	private static final int WINDOW = 4;
+	private static final int DIGITS = 1 << WINDOW;
+	private static final int WINDOWS = (63 + WINDOW - 1) / WINDOW;
+
+	/**
+	 * Slots of the cache. Entries are immutable, so a racy read sees either
+	 * a complete entry or none.
+	 */
+	private final Entry[] slots;
+
+	private final LongAdder hits = Metrics.DEFAULT.counter("fixed_base_hits_total",
+			"Exponentiations with a cached fixed-base table.");
+	private final LongAdder misses = Metrics.DEFAULT.counter("fixed_base_misses_total",
+			"Exponentiations which had to build a fixed-base table.");
+
+	/**
+	 * @param capacity
+	 *            Maximum number of (a, n) tables kept, rounded up to a power
+	 *            of two.
+	 */
+	FixedBaseCache(int capacity) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Expected a capacity of 1 to 2^30 tables.");
+		}
+		int size = Integer.highestOneBit(capacity);
+		this.slots = new Entry[size < capacity ? size << 1 : size];
+	}
+
+	/**
+	 * Computes a^x mod n using the table for (a, n), which is built on the
+	 * first use. Negative exponents and non-positive moduli are passed on to
+	 * <code>ModExp.pow()</code>.
+	 *
+	 * @param a
+	 *            The fixed base (generator).
+	 * @param x
+	 *            The exponent (secret).
+	 * @param n
+	 *            The modulus.
+	 * @return a^x mod n
+	 */
+	long pow(int a, long x, int n) {
+		if (n <= 0 || x < 0) {
+			return ModExp.pow(a, x, n);
+		}
+
+		long[][] table = table(a, n);
+
+		long result = 1 % n;
+		for (int i = 0; x != 0; i++, x >>>= WINDOW) {
+			int digit = (int) (x & (DIGITS - 1));
+			if (digit != 0) {
+				result = result * table[i][digit] % n;
+			}
+		}
+		return result;
+	}
+
+	private long[][] table(int a, int n) {
+		long key = ((long) a << 32) | (n & 0xFFFFFFFFL);
+		// Fibonacci hashing spreads neighbouring parameter sets over the slots
+		int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (slots.length - 1);
+
+		Entry entry = slots[slot];
+		if (entry != null && entry.key == key) {
+			hits.increment();
+			return entry.table;
+		}
+
+		/*
+		 * A concurrent miss on the same key merely builds an identical table.
+		 */
+		misses.increment();
+		entry = new Entry(key, build(a, n));
+		slots[slot] = entry;
+		return entry.table;
+	}
+
+	private static long[][] build(int a, int n) {
+		long[][] table = new long[WINDOWS][DIGITS];
+
+		long base = ModExp.pow(a, 1, n);
+		for (int i = 0; i < WINDOWS; i++) {
+			table[i][0] = 1 % n;
+			for (int d = 1; d < DIGITS; d++) {
+				table[i][d] = table[i][d - 1] * base % n;
+			}
+			// a^(2^(w*(i+1))) = (a^(2^(w*i)))^(2^w)
+			base = table[i][DIGITS - 1] * base % n;
+		}
+		return table;
+	}
+
+	private static final class Entry {
+
+		final long key;
+		final long[][] table;
+
+		Entry(long key, long[][] table) {
+			this.key = key;
+			this.table = table;
+		}
+	}
+}
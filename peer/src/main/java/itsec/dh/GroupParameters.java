@@ -0,0 +1,62 @@
+package itsec.dh;
+
+import java.math.BigInteger;
+
+/**
+ * Parameters of a Diffie-Hellman group: the prime modulus p (n in the
+ * protocol) and the generator g (a in the protocol).
+ */
+final class GroupParameters {
+
+	private final BigInteger p;
+	private final BigInteger g;
+
+	/**
+	 * @param p
+	 *            Prime modulus.
+	 * @param g
+	 *            Generator of the multiplicative group modulo p.
+	 */
+	GroupParameters(BigInteger p, BigInteger g) {
+		this.p = p;
+		this.g = g;
+	}
+
+	BigInteger p() {
+		return p;
+	}
+
+	BigInteger g() {
+		return g;
+	}
+
+	/**
+	 * @return The size of the modulus in bits.
+	 */
+	int bitLength() {
+		return p.bitLength();
+	}
+
+	/**
+	 * @return The modulus as n of the protocol.
+	 * @throws ArithmeticException
+	 *             If the modulus does not fit into an int.
+	 */
+	int n() {
+		return p.intValueExact();
+	}
+
+	/**
+	 * @return The generator as a of the protocol.
+	 * @throws ArithmeticException
+	 *             If the generator does not fit into an int.
+	 */
+	int a() {
+		return g.intValueExact();
+	}
+
+	@Override
+	public String toString() {
+		return "p = " + p + ", g = " + g;
+	}
+}
@@ -0,0 +1,562 @@
+package itsec.dh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+/**
+ * State of a single Diffie-Hellman key exchange between two peers. A session
+ * owns its connection with the message reader and send buffer, the wire
+ * format, the negotiated parameters a and n, the secret x and both public
+ * keys. Thus, any number of sessions may run side by side in one JVM.
+ *
+ * In big-modulus mode, a MODP group of RFC 3526 is negotiated instead of a and
+ * n, see <code>proposeGroup()</code>. The secret and the keys are then kept as
+ * limb arrays of the group's <code>MontgomeryContext</code> and are available
+ * as <code>BigInteger</code> through the <code>big...()</code> getters.
+ *
+ * In curve mode, an elliptic curve is negotiated instead, see
+ * <code>proposeCurve()</code>, and the keys are agreed by XDH (RFC 7748).
+ * The keys are available through the <code>curve...()</code> getters.
+ *
+ * A session runs one exchange at a time. On a long-lived connection, e.g.
+ * from a <code>ConnectionPool</code>, <code>reset()</code> starts the next
+ * one.
+ *
+ * A session is driven by exactly one thread, which also sends and receives
+ * the KEY messages, see <code>exchangeKeys()</code>.
+ */
+class HandshakeSession implements Closeable {
+
+	private final Closeable connection;
+	private final MessageReader reader;
+	private final OutputStream outputStream;
+
+	private final ByteBuffer output = ByteBuffer.allocate(Message.MAX_LENGTH);
+
+	/**
+	 * ID which tags the messages of the current exchange, see
+	 * <code>reset()</code>.
+	 */
+	private int id = Message.NO_ID;
+
+	private int a;
+	private int n;
+	private int x;
+
+	private long ourKey;
+	private long theirKey;
+
+	private ModpGroup group;
+	private long[] bigX;
+	private long[] bigOurKey;
+	private long[] bigTheirKey;
+
+	private NamedCurve curve;
+	private KeyPair curveKeys;
+	private byte[] curveTheirKey;
+
+	/**
+	 * <code>System.nanoTime()</code> of sending the proposal (active side) and
+	 * of the start of the handshake, see <code>Metrics.handshake</code>.
+	 */
+	private long proposalStart;
+	private long handshakeStart;
+	private boolean completed;
+
+	/**
+	 * Sets up the session for the streams of a connected socket.
+	 *
+	 * @param socket
+	 *            The connection to the other peer. It is closed along with the
+	 *            session.
+	 * @throws IOException
+	 *             If the streams could not be initialized.
+	 */
+	HandshakeSession(Socket socket) throws IOException {
+		this(Transport.tcp(socket));
+	}
+
+	/**
+	 * Sets up the session for a transport, e.g. the in-memory loopback of
+	 * <code>Transport.loopback()</code>.
+	 *
+	 * @param transport
+	 *            The connection to the other peer. It is closed along with the
+	 *            session.
+	 */
+	HandshakeSession(Transport transport) {
+		this(transport.input(), transport.output(), transport);
+	}
+
+	/**
+	 * Sets up the session for an arbitrary pair of streams.
+	 *
+	 * @param in
+	 *            Stream of messages from the other peer.
+	 * @param out
+	 *            Stream of messages to the other peer.
+	 * @param connection
+	 *            Resource closed along with the session.
+	 */
+	HandshakeSession(InputStream in, OutputStream out, Closeable connection) {
+		this.connection = connection;
+		this.reader = new MessageReader(in);
+		this.outputStream = out;
+	}
+
+	/**
+	 * Forgets the state of the previous exchange and tags the messages of the
+	 * next one with a new exchange ID (active side). Tagged exchanges do not
+	 * end the connection, so the passive peer keeps it open for further
+	 * exchanges. On the passive side, the ID is taken from the next proposal
+	 * instead.
+	 */
+	void reset() {
+		id = id == Message.NO_ID ? 0 : id + 1;
+		a = 0;
+		n = 0;
+		x = 0;
+		ourKey = 0;
+		theirKey = 0;
+		group = null;
+		bigX = null;
+		bigOurKey = null;
+		bigTheirKey = null;
+		curve = null;
+		curveKeys = null;
+		curveTheirKey = null;
+		completed = false;
+	}
+
+	/**
+	 * Chooses the wire format for this session (active side). The passive side
+	 * follows the choice of the active one.
+	 */
+	void format(WireFormat format) {
+		reader.format(format);
+	}
+
+	WireFormat format() {
+		return reader.format();
+	}
+
+	/**
+	 * Sends our key in the wire format of the session.
+	 *
+	 * @param key
+	 *            The key sent.
+	 */
+	void sendKey(long key) throws IOException {
+		format().key(output, id, key);
+		flush();
+	}
+
+	/**
+	 * Sends our key of a MODP group in the wire format of the session.
+	 */
+	private void sendKey(long[] key) throws IOException {
+		byte[] magnitude = new byte[8 * key.length];
+		int length = MontgomeryContext.encode(key, magnitude);
+		format().key(output, id, magnitude, length);
+		flush();
+	}
+
+	/**
+	 * Sends our public key on the curve in the wire format of the session.
+	 */
+	private void sendKey(KeyPair keys) throws IOException {
+		byte[] magnitude = NamedCurve.publicKey(keys).toByteArray();
+		format().key(output, id, magnitude, magnitude.length);
+		flush();
+	}
+
+	/**
+	 * Writes the encoded message in the output buffer to the connection.
+	 */
+	private void flush() throws IOException {
+		outputStream.write(output.array(), 0, output.position());
+		outputStream.flush();
+		output.clear();
+	}
+
+	/**
+	 * Method to wait (blocking) for a message via the connection.
+	 *
+	 * @return The message received. The object is reused by the next call.
+	 * @throws SocketTimeoutException
+	 *             If the read timeout of the socket expired. It is counted in
+	 *             <code>Metrics.timeouts</code>.
+	 * @throws IOException
+	 *             If the connection failed or was closed by the peer.
+	 */
+	Message waitFor() throws IOException {
+		Message message;
+		try {
+			message = reader.read();
+		} catch (SocketTimeoutException e) {
+			Metrics.DEFAULT.timeouts.increment();
+			throw e;
+		}
+		if (message.type() == Message.UNKNOWN) {
+			Metrics.DEFAULT.parseErrors.increment();
+		}
+
+		Log.DEFAULT.trace("Received data by peer: ", message);
+		return message;
+	}
+
+	/**
+	 * Sends a PROP (propose) command comprising the a and n values for this
+	 * session (active side).
+	 */
+	void propose(int a, int n) throws IOException {
+		this.a = a;
+		this.n = n;
+		started();
+		format().prop(output, id, a, n);
+		flush();
+	}
+
+	/**
+	 * Sends a MODP command proposing an RFC 3526 group instead of a and n
+	 * (active side), which switches the session to big-modulus mode.
+	 */
+	void proposeGroup(ModpGroup group) throws IOException {
+		this.group = group;
+		started();
+		format().modp(output, id, group.id);
+		flush();
+	}
+
+	/**
+	 * Sends a CURVE command proposing an elliptic curve instead of a and n
+	 * (active side), which switches the session to curve mode.
+	 */
+	void proposeCurve(NamedCurve curve) throws IOException {
+		this.curve = curve;
+		started();
+		format().curve(output, id, curve);
+		flush();
+	}
+
+	/**
+	 * Waits for the answer to our proposal (active side).
+	 *
+	 * @return Whether the proposal was acknowledged.
+	 */
+	boolean awaitAck() throws IOException {
+		Message message = waitFor();
+		if (message.id() != id) {
+			throw new IllegalArgumentException("Expected answer to exchange " + id + ".");
+		}
+		boolean acknowledged = message.type() == Message.ACK;
+		Metrics.DEFAULT.proposal.recordSince(proposalStart);
+		if (!acknowledged) {
+			Metrics.DEFAULT.naks.increment();
+		}
+		return acknowledged;
+	}
+
+	private void started() {
+		proposalStart = System.nanoTime();
+		handshakeStart = proposalStart;
+	}
+
+	/**
+	 * Sends NAK and counts it.
+	 */
+	private void refuse() throws IOException {
+		format().nak(output, id);
+		flush();
+		Metrics.DEFAULT.naks.increment();
+	}
+
+	/**
+	 * Waits for a PROP (propose) command comprising a and n values, or a MODP
+	 * or CURVE command, and answers it with ACK or NAK (passive side).
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the message is no valid proposal.
+	 */
+	void awaitProposal() throws IOException {
+		Message message = waitFor();
+		handshakeStart = System.nanoTime();
+		// answer in kind, a tagged proposal keeps the connection open
+		id = message.id();
+
+		if (message.type() == Message.MODP) {
+			group = ModpGroup.byId(message.group());
+			if (group == null) {
+				refuse();
+				throw new IllegalArgumentException("Unknown MODP group " + message.group());
+			}
+			format().ack(output, id);
+			flush();
+			return;
+		}
+
+		if (message.type() == Message.CURVE) {
+			curve = message.curve();
+			if (curve == null) {
+				refuse();
+				throw new IllegalArgumentException("Unknown curve");
+			}
+			format().ack(output, id);
+			flush();
+			return;
+		}
+
+		if (message.type() != Message.PROP) {
+			throw new IllegalArgumentException("Expected PROP message.");
+		}
+
+		a = message.a();
+		n = message.n();
+
+		if (a <= 0 || n <= 0) {
+			refuse();
+			throw new IllegalArgumentException("Expected a and n parameters to be positive integers");
+		}
+		if (!ParameterValidator.DEFAULT.isValid(a, n)) {
+			refuse();
+			throw new IllegalArgumentException("Expected n to be prime and a to be a primitive root of n");
+		}
+
+		format().ack(output, id);
+		flush();
+	}
+
+	/**
+	 * Creates the secret x and derives our exchange key y = a^x mod n, using
+	 * the shared fixed-base table for (a, n), or of the MODP group in
+	 * big-modulus mode. In curve mode, a key pair of the curve is generated.
+	 *
+	 * @param rng
+	 *            Source for the secret.
+	 */
+	void generateKey(RandomSource rng) {
+		long start = System.nanoTime();
+		if (curve != null) {
+			curveKeys = curve.generateKeyPair();
+		} else if (group != null) {
+			generateBigKey(rng);
+		} else {
+			x = rng.nextSecret(n);
+			ourKey = FixedBaseCache.DEFAULT.pow(a, x, n);
+		}
+		Metrics.DEFAULT.keyGeneration.recordSince(start);
+	}
+
+	/**
+	 * Takes the secret x and our exchange key y from a pool of pre-generated
+	 * pairs for (a, n). The pool only serves protocol-size groups, so in
+	 * big-modulus and curve mode the key is generated instead.
+	 *
+	 * @param pool
+	 *            Pool to take the pair from.
+	 */
+	void generateKey(KeyPairPool pool) {
+		long start = System.nanoTime();
+		if (curve != null) {
+			curveKeys = curve.generateKeyPair();
+		} else if (group != null) {
+			generateBigKey(RandomSource.DEFAULT);
+		} else {
+			long pair = pool.take(a, n);
+			x = KeyPairPool.secret(pair);
+			ourKey = KeyPairPool.key(pair);
+		}
+		Metrics.DEFAULT.keyGeneration.recordSince(start);
+	}
+
+	private void generateBigKey(RandomSource rng) {
+		MontgomeryContext context = group.context();
+
+		byte[] secret = new byte[group.exponentBits / 8];
+		rng.nextBytes(secret);
+		bigX = new long[group.exponentBits / 64];
+		context.decode(secret, secret.length, bigX);
+
+		bigOurKey = context.newResidue();
+		context.powGenerator(bigX, bigOurKey);
+	}
+
+	/**
+	 * Sends our key and then waits for their key, on the calling thread. Both
+	 * peers send before they read, and a KEY message is far smaller than the
+	 * send buffer of a socket, so the send completes without waiting for the
+	 * other peer and the exchange cannot deadlock. No thread is forked.
+	 *
+	 * @return Their exchange key, 0 in big-modulus and curve mode (see
+	 *         <code>bigTheirKey()</code> and <code>curveTheirKey()</code>).
+	 * @throws IOException
+	 *             If our key could not be sent or theirs not be received.
+	 * @throws IllegalArgumentException
+	 *             If their message is no valid key.
+	 */
+	long exchangeKeys() throws IOException {
+		long start = System.nanoTime();
+		if (curve != null) {
+			sendKey(curveKeys);
+		} else if (group != null) {
+			sendKey(bigOurKey);
+		} else {
+			sendKey(ourKey);
+		}
+
+		Message message = waitFor();
+		if (message.type() != Message.KEY || message.id() != id) {
+			throw new IllegalArgumentException("Expected key payload.");
+		}
+
+		if (curve != null) {
+			if (message.keyLength() == 0 || message.keyLength() > curve.keyLength) {
+				throw new IllegalArgumentException("Expected their key to have at most " + curve.keyLength
+						+ " bytes");
+			}
+			curveTheirKey = Arrays.copyOf(message.keyMagnitude(), message.keyLength());
+		} else if (group != null) {
+			MontgomeryContext context = group.context();
+			bigTheirKey = context.newResidue();
+			if (message.keyLength() == 0 || !context.decode(message.keyMagnitude(), message.keyLength(), bigTheirKey)
+					|| !context.isValidKey(bigTheirKey)) {
+				throw new IllegalArgumentException("Expected their key to be > 1 and < p - 1");
+			}
+		} else {
+			long key = message.key();
+			if (key <= 0) {
+				throw new IllegalArgumentException("Expected their key to be > 0");
+			}
+			theirKey = key;
+		}
+		Metrics.DEFAULT.keyExchange.recordSince(start);
+		return theirKey;
+	}
+
+	/**
+	 * Derives the shared key k = y^x mod n from their exchange key.
+	 */
+	long sharedKey() {
+		long key = Peer.expmod(theirKey, x, n);
+		complete();
+		return key;
+	}
+
+	/**
+	 * Derives the shared key k = y^x mod p of a MODP group from their exchange
+	 * key (big-modulus mode).
+	 */
+	BigInteger bigSharedKey() {
+		MontgomeryContext context = group.context();
+		long[] key = context.newResidue();
+		context.pow(bigTheirKey, bigX, key);
+		complete();
+		return MontgomeryContext.toBigInteger(key);
+	}
+
+	/**
+	 * Derives the shared secret by XDH from our secret and their public key
+	 * (curve mode).
+	 *
+	 * @throws IllegalArgumentException
+	 *             If their key is of small order.
+	 */
+	byte[] curveSharedKey() {
+		byte[] key = curve.sharedSecret(curveKeys.getPrivate(), curveTheirKey, curveTheirKey.length);
+		complete();
+		return key;
+	}
+
+	/**
+	 * Records the handshake on the first derivation of the shared key.
+	 */
+	private void complete() {
+		if (!completed) {
+			completed = true;
+			Metrics.DEFAULT.handshake.recordSince(handshakeStart);
+			Metrics.DEFAULT.handshakes.increment();
+		}
+	}
+
+	/**
+	 * @return Whether the messages of the current exchange are tagged with an
+	 *         exchange ID, so the connection outlives the exchange.
+	 */
+	boolean tagged() {
+		return id != Message.NO_ID;
+	}
+
+	/**
+	 * @return Whether the shared key of the current exchange was derived.
+	 */
+	boolean completed() {
+		return completed;
+	}
+
+	/**
+	 * @return The curve of the session, null unless in curve mode.
+	 */
+	NamedCurve curve() {
+		return curve;
+	}
+
+	BigInteger curveOurKey() {
+		return NamedCurve.publicKey(curveKeys);
+	}
+
+	BigInteger curveTheirKey() {
+		return new BigInteger(1, curveTheirKey);
+	}
+
+	/**
+	 * @return The MODP group of the session, null unless in big-modulus mode.
+	 */
+	ModpGroup group() {
+		return group;
+	}
+
+	BigInteger bigX() {
+		return MontgomeryContext.toBigInteger(bigX);
+	}
+
+	BigInteger bigOurKey() {
+		return MontgomeryContext.toBigInteger(bigOurKey);
+	}
+
+	BigInteger bigTheirKey() {
+		return MontgomeryContext.toBigInteger(bigTheirKey);
+	}
+
+	int a() {
+		return a;
+	}
+
+	int n() {
+		return n;
+	}
+
+	int x() {
+		return x;
+	}
+
+	long ourKey() {
+		return ourKey;
+	}
+
+	long theirKey() {
+		return theirKey;
+	}
+
+	@Override
+	public void close() throws IOException {
+		connection.close();
+	}
+}
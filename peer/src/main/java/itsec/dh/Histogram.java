@@ -0,0 +1,119 @@
+package itsec.dh;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram in the style of HdrHistogram: every power of two is
+ * split into <code>HALF</code> linear sub-buckets, so any recorded value is
+ * kept with a relative error below 1 / <code>HALF</code> (about 3%), from
+ * nanoseconds up to centuries, in a fixed array of counts.
+ *
+ * Recording is a single atomic increment plus two adders and does not
+ * allocate, so it can be used on the handshake threads. Quantiles are read
+ * from a copy of the counts; concurrent recordings may or may not be part of
+ * it.
+ */
+final class Histogram {
+
+	private static final int SUB_BITS = 6;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF = SUB_COUNT / 2;
+
+	/**
+	 * Values below <code>SUB_COUNT</code> have a bucket each, then every
+	 * power of two up to 2^62 has <code>HALF</code> buckets.
+	 */
+	private static final int BUCKETS = (65 - SUB_BITS) * HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a value, e.g. a duration in nanoseconds. Negative values are
+	 * recorded as 0.
+	 */
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.getAndIncrement(index(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Records the time elapsed since a <code>System.nanoTime()</code>.
+	 */
+	void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	long count() {
+		return count.sum();
+	}
+
+	long sum() {
+		return sum.sum();
+	}
+
+	long max() {
+		return max.get();
+	}
+
+	/**
+	 * Determines several quantiles at once from one copy of the counts.
+	 *
+	 * @param quantiles
+	 *            Quantiles between 0 and 1 in ascending order.
+	 * @return For each quantile, the highest value equivalent to the one at
+	 *         that rank, 0 if nothing was recorded.
+	 */
+	long[] quantiles(double... quantiles) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+
+		long[] values = new long[quantiles.length];
+		if (total == 0) {
+			return values;
+		}
+
+		long highest = max();
+		int bucket = 0;
+		long seen = snapshot[0];
+		for (int q = 0; q < quantiles.length; q++) {
+			long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+			while (seen < rank && bucket < BUCKETS - 1) {
+				seen += snapshot[++bucket];
+			}
+			values[q] = Math.min(highestEquivalent(bucket), highest);
+		}
+		return values;
+	}
+
+	private static int index(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		// keep the leading SUB_BITS bits, which lie in [HALF, SUB_COUNT)
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return shift * HALF + (int) (value >>> shift);
+	}
+
+	private static long highestEquivalent(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = index / HALF - 1;
+		long mantissa = index - shift * HALF;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
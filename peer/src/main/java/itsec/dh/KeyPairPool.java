@@ -0,0 +1,193 @@
+package itsec.dh;
+
+import java.io.Closeable;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of ephemeral key pairs (x, y = a^x mod n) generated ahead of time, so
+ * that a handshake takes a ready pair instead of drawing the secret and
+ * exponentiating on its critical path.
+ *
+ * There is one bounded pool per parameter set (a, n) in use. A background
+ * worker fills a pool up to the high watermark whenever a take leaves it
+ * below the low watermark. If a pool is empty, e.g. during a burst, the pair
+ * is generated by the caller and counted as depletion. Hits, depletions and
+ * pairs generated by the worker are counted in <code>Metrics.DEFAULT</code>
+ * as <code>keypair_pool_hits_total</code>,
+ * <code>keypair_pool_depletions_total</code> and
+ * <code>keypair_pool_generated_total</code>.
+ *
+ * Pairs are packed into a single long, see <code>secret()</code> and
+ * <code>key()</code>, so taking a pair allocates nothing.
+ */
+final class KeyPairPool implements Closeable {
+
+	static final int LOW_WATERMARK = 16;
+	static final int HIGH_WATERMARK = 64;
+	static final int MAX_PARAMETER_SETS = 1024;
+
+	private final int lowWatermark;
+	private final int highWatermark;
+	private final int maxParameterSets;
+
+	private final ConcurrentMap<Long, Pairs> pools = new ConcurrentHashMap<>();
+	private final BlockingQueue<Pairs> refills = new LinkedBlockingQueue<>();
+
+	private final Thread worker;
+
+	private final LongAdder hits = Metrics.DEFAULT.counter("keypair_pool_hits_total",
+			"Key pairs taken from the pool.");
+	private final LongAdder depletions = Metrics.DEFAULT.counter("keypair_pool_depletions_total",
+			"Key pairs generated by the handshake, because the pool was empty or not available.");
+	private final LongAdder generated = Metrics.DEFAULT.counter("keypair_pool_generated_total",
+			"Key pairs generated ahead of time by the pool worker.");
+
+	/**
+	 * Creates a pool with the default watermarks and starts its worker.
+	 */
+	KeyPairPool() {
+		this(LOW_WATERMARK, HIGH_WATERMARK, MAX_PARAMETER_SETS);
+	}
+
+	/**
+	 * Creates the pool and starts its worker.
+	 *
+	 * @param lowWatermark
+	 *            Number of pairs below which a pool is refilled.
+	 * @param highWatermark
+	 *            Number of pairs a pool is filled up to.
+	 * @param maxParameterSets
+	 *            Maximum number of parameter sets with a pool. Pairs for
+	 *            further sets are always generated by the caller.
+	 */
+	KeyPairPool(int lowWatermark, int highWatermark, int maxParameterSets) {
+		if (lowWatermark < 0 || highWatermark < 1 || lowWatermark >= highWatermark) {
+			throw new IllegalArgumentException("Expected 0 <= low watermark < high watermark.");
+		}
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+		this.maxParameterSets = maxParameterSets;
+
+		this.worker = new Thread(this::refill, "keypair-pool");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Takes a key pair for the parameter set (a, n).
+	 *
+	 * @return The pair, packed into a long.
+	 */
+	long take(int a, int n) {
+		Long id = ((long) a << 32) | (n & 0xFFFFFFFFL);
+
+		Pairs pairs = pools.get(id);
+		if (pairs == null && pools.size() < maxParameterSets) {
+			pairs = pools.computeIfAbsent(id, k -> new Pairs(a, n));
+		}
+
+		if (pairs == null) {
+			depletions.increment();
+			return generate(a, n);
+		}
+
+		long pair = pairs.poll();
+		if (pairs.size() < lowWatermark && pairs.refilling.compareAndSet(false, true)) {
+			refills.add(pairs);
+		}
+
+		if (pair < 0) {
+			depletions.increment();
+			return generate(a, n);
+		}
+		hits.increment();
+		return pair;
+	}
+
+	/**
+	 * @return The secret x of a packed pair.
+	 */
+	static int secret(long pair) {
+		return (int) (pair >>> 32);
+	}
+
+	/**
+	 * @return The public key y of a packed pair.
+	 */
+	static long key(long pair) {
+		return pair & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Stops the worker.
+	 */
+	@Override
+	public void close() {
+		worker.interrupt();
+	}
+
+	private long generate(int a, int n) {
+		int x = RandomSource.DEFAULT.nextSecret(n);
+		return ((long) x << 32) | FixedBaseCache.DEFAULT.pow(a, x, n);
+	}
+
+	private void refill() {
+		try {
+			while (true) {
+				Pairs pairs = refills.take();
+				while (pairs.size() < highWatermark) {
+					pairs.offer(generate(pairs.a, pairs.n));
+					generated.increment();
+				}
+				pairs.refilling.set(false);
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Ring buffer of the pairs of one parameter set.
+	 */
+	private final class Pairs {
+
+		final int a;
+		final int n;
+		final AtomicBoolean refilling = new AtomicBoolean();
+
+		private final long[] ring = new long[highWatermark];
+		private int head;
+		private int size;
+
+		Pairs(int a, int n) {
+			this.a = a;
+			this.n = n;
+		}
+
+		synchronized long poll() {
+			if (size == 0) {
+				return -1;
+			}
+			long pair = ring[head];
+			head = (head + 1) % ring.length;
+			size--;
+			return pair;
+		}
+
+		synchronized void offer(long pair) {
+			if (size < ring.length) {
+				ring[(head + size) % ring.length] = pair;
+				size++;
+			}
+		}
+
+		synchronized int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package itsec.dh;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a number of concurrent active peers against a passive peer at a
+ * target rate, to find out how many exchanges per second the passive peer
+ * sustains. Every exchange is a complete protocol run on a new connection:
+ * connect, PROP/ACK, KEY/KEY and the shared key.
+ *
+ * The load is open-loop: exchange i is due at start + i / rate, no matter how
+ * long earlier exchanges took. Each peer takes the next due exchange, waits
+ * for its time and runs it. Latency is measured from the time the exchange
+ * was due, not from the time a peer got around to it. Otherwise a stalled
+ * passive peer would also stall the load and hide the waiting time of all
+ * exchanges that should have been started meanwhile (coordinated omission).
+ * The service time, measured from the actual start, is reported as well.
+ *
+ * Without a <code>ConnectionPool</code>, every exchange connects anew, which
+ * puts the TCP handshake into the latency. With a pool, the exchanges reuse
+ * warm connections.
+ */
+final class LoadGenerator {
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final String[] LABELS = { "p50", "p90", "p99", "p99.9" };
+
+	/**
+	 * Head start of the peers before the first exchange is due.
+	 */
+	private static final long RAMP_NANOS = 10000000;
+
+	private final InetSocketAddress address;
+	private final WireFormat format;
+	private final GroupParameters group;
+	private final int peers;
+	private final double rate;
+	private final ConnectionPool pool;
+
+	private final Histogram latency = new Histogram();
+	private final Histogram serviceTime = new Histogram();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final AtomicReference<String> firstError = new AtomicReference<>();
+
+	/**
+	 * @param address
+	 *            Address of the passive peer.
+	 * @param format
+	 *            Wire format to use.
+	 * @param group
+	 *            Group proposed in all exchanges.
+	 * @param peers
+	 *            Number of concurrent active peers.
+	 * @param rate
+	 *            Target rate in exchanges per second.
+	 * @param pool
+	 *            Pool of the connections to reuse, or null to connect for
+	 *            every exchange.
+	 */
+	LoadGenerator(InetSocketAddress address, WireFormat format, GroupParameters group, int peers, double rate,
+			ConnectionPool pool) {
+		if (peers < 1 || !(rate > 0)) {
+			throw new IllegalArgumentException("Expected at least one peer and a positive rate.");
+		}
+		this.address = address;
+		this.format = format;
+		this.group = group;
+		this.peers = peers;
+		this.rate = rate;
+		this.pool = pool;
+	}
+
+	/**
+	 * Runs the load and logs throughput and latency percentiles at the end.
+	 *
+	 * @param seconds
+	 *            Duration in which exchanges are due.
+	 */
+	void run(int seconds) throws InterruptedException {
+		long interval = Math.max(1, Math.round(1e9 / rate));
+		long start = System.nanoTime() + RAMP_NANOS;
+		long end = start + seconds * 1000000000L;
+		AtomicLong next = new AtomicLong();
+
+		Thread[] threads = new Thread[peers];
+		for (int i = 0; i < peers; i++) {
+			threads[i] = Thread.ofVirtual().name("load-peer-" + i).start(() -> {
+				long due;
+				while ((due = start + next.getAndIncrement() * interval) < end) {
+					run(due);
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		report(seconds, System.nanoTime() - start);
+	}
+
+	/**
+	 * Waits until an exchange is due and runs it.
+	 */
+	private void run(long due) {
+		long now;
+		while ((now = System.nanoTime()) < due) {
+			LockSupport.parkNanos(due - now);
+		}
+
+		if (exchange()) {
+			long done = System.nanoTime();
+			latency.record(done - due);
+			serviceTime.record(done - now);
+			completed.increment();
+		} else {
+			failed.increment();
+		}
+	}
+
+	/**
+	 * Runs one exchange on a pooled or a new connection.
+	 *
+	 * @return Whether the exchange completed with a shared key.
+	 */
+	private boolean exchange() {
+		try {
+			if (pool != null) {
+				try (ConnectionPool.Lease lease = pool.acquire(address)) {
+					return exchange(lease.session());
+				}
+			}
+
+			try (HandshakeSession session = new HandshakeSession(
+					ConnectionPool.connect(address, ConnectionPool.connectTimeout()).socket())) {
+				return exchange(session);
+			}
+		} catch (IOException | RuntimeException e) {
+			firstError.compareAndSet(null, e.toString());
+			return false;
+		}
+	}
+
+	private boolean exchange(HandshakeSession session) throws IOException {
+		session.format(format);
+		session.propose(group.a(), group.n());
+		if (!session.awaitAck()) {
+			firstError.compareAndSet(null, "The proposal was not acknowledged.");
+			return false;
+		}
+		session.generateKey(RandomSource.DEFAULT);
+		session.exchangeKeys();
+		session.sharedKey();
+		return true;
+	}
+
+	private void report(int seconds, long elapsedNanos) {
+		long done = completed.sum();
+		double elapsed = elapsedNanos / 1e9;
+
+		Log.DEFAULT.info("Offered " + rate + " exchanges/s for " + seconds + " s by " + peers + " peers to "
+				+ address + (pool == null ? "" : " over pooled connections"));
+		Log.DEFAULT.info(String.format("Completed %d exchanges (%d failed) in %.2f s: %.1f exchanges/s", done,
+				failed.sum(), elapsed, done / elapsed));
+		Log.DEFAULT.info("Latency: " + percentiles(latency));
+		Log.DEFAULT.info("Service time: " + percentiles(serviceTime));
+
+		String error = firstError.get();
+		if (error != null) {
+			Log.DEFAULT.warn("First error: " + error);
+		}
+	}
+
+	private static String percentiles(Histogram histogram) {
+		long[] values = histogram.quantiles(QUANTILES);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < QUANTILES.length; i++) {
+			text.append(String.format("%s = %.3f ms, ", LABELS[i], values[i] / 1e6));
+		}
+		return text.append(String.format("max = %.3f ms", histogram.max() / 1e6)).toString();
+	}
+}
@@ -0,0 +1,208 @@
+package itsec.dh;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous console log. <code>System.out</code> is synchronized and
+ * writes blocking, so printing on the handshake threads serializes them on
+ * the console. Instead, messages are put into a bounded ring buffer without
+ * locks, and a background thread drains the buffer and writes the messages
+ * in batches.
+ *
+ * The ring buffer has a sequence number per slot: a producer claims the next
+ * position by CAS on the tail and publishes its message by advancing the
+ * sequence of the slot, the drainer frees the slot by advancing it by the
+ * capacity. If the buffer is full, the message is dropped and counted, so
+ * logging never blocks; the drainer reports the number of dropped messages.
+ *
+ * Messages below the level of the log are discarded before they are
+ * formatted. The level is read from the system property
+ * <code>itsec.dh.log</code> (TRACE, DEBUG, INFO, WARN or ERROR), INFO by
+ * default. Pending messages are written when the JVM shuts down.
+ */
+final class Log {
+
+	enum Level {
+		TRACE, DEBUG, INFO, WARN, ERROR
+	}
+
+	/**
+	 * System property with the level of the default log.
+	 */
+	static final String PROPERTY = "itsec.dh.log";
+
+	/**
+	 * Log shared by all components of this JVM.
+	 */
+	static final Log DEFAULT = new Log(Level.valueOf(System.getProperty(PROPERTY, "INFO").toUpperCase()), 1 << 14);
+
+	/**
+	 * Maximum number of characters written at once.
+	 */
+	private static final int BATCH = 1 << 16;
+
+	/**
+	 * Pause of the drainer while the buffer is empty.
+	 */
+	private static final long IDLE_NANOS = 1000000;
+
+	private final String[] messages;
+	private final AtomicLongArray sequences;
+	private final int mask;
+
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Next position to drain, guarded by the lock of the log.
+	 */
+	private long head;
+
+	/**
+	 * Number of dropped messages already reported, guarded by the lock.
+	 */
+	private long reported;
+
+	private final StringBuilder batch = new StringBuilder();
+	private final LongAdder dropped = new LongAdder();
+
+	private volatile Level level;
+
+	/**
+	 * Creates a log and starts its drainer.
+	 *
+	 * @param level
+	 *            Minimum level of the messages written.
+	 * @param capacity
+	 *            Number of messages buffered, a power of two.
+	 */
+	Log(Level level, int capacity) {
+		if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Expected the capacity to be a power of two.");
+		}
+		this.level = level;
+		this.messages = new String[capacity];
+		this.sequences = new AtomicLongArray(capacity);
+		this.mask = capacity - 1;
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, i);
+		}
+
+		Thread drainer = new Thread(this::drainLoop, "log-drainer");
+		drainer.setDaemon(true);
+		drainer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "log-shutdown"));
+	}
+
+	/**
+	 * @return Whether messages of the level are written.
+	 */
+	boolean enabled(Level level) {
+		return level.compareTo(this.level) >= 0;
+	}
+
+	void level(Level level) {
+		this.level = level;
+	}
+
+	/**
+	 * Logs a per-message trace. The argument is only rendered if tracing is
+	 * enabled, but then immediately, so it may be reused afterwards.
+	 */
+	void trace(String text, Object arg) {
+		if (enabled(Level.TRACE)) {
+			put(text + arg);
+		}
+	}
+
+	void info(String text) {
+		if (enabled(Level.INFO)) {
+			put(text);
+		}
+	}
+
+	void warn(String text) {
+		if (enabled(Level.WARN)) {
+			put(text);
+		}
+	}
+
+	/**
+	 * @return The number of messages dropped on a full buffer so far.
+	 */
+	long dropped() {
+		return dropped.sum();
+	}
+
+	private void put(String message) {
+		long position = tail.get();
+		while (true) {
+			int slot = (int) position & mask;
+			long sequence = sequences.getAcquire(slot);
+			if (sequence == position) {
+				if (tail.weakCompareAndSetVolatile(position, position + 1)) {
+					messages[slot] = message;
+					sequences.setRelease(slot, position + 1);
+					return;
+				}
+				position = tail.get();
+			} else if (sequence < position) {
+				// the drainer has not freed the slot of the previous round yet
+				dropped.increment();
+				return;
+			} else {
+				position = tail.get();
+			}
+		}
+	}
+
+	private void drainLoop() {
+		while (true) {
+			if (drain() == 0) {
+				LockSupport.parkNanos(this, IDLE_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Writes all published messages to <code>System.out</code>.
+	 *
+	 * @return The number of messages written.
+	 */
+	synchronized int drain() {
+		int count = 0;
+		while (true) {
+			int slot = (int) head & mask;
+			if (sequences.getAcquire(slot) != head + 1) {
+				break;
+			}
+			batch.append(messages[slot]).append(System.lineSeparator());
+			messages[slot] = null;
+			sequences.setRelease(slot, head + messages.length);
+			head++;
+			count++;
+
+			if (batch.length() >= BATCH) {
+				write();
+			}
+		}
+
+		long lost = dropped.sum() - reported;
+		if (lost > 0) {
+			reported += lost;
+			batch.append(lost).append(" log messages dropped.").append(System.lineSeparator());
+		}
+		write();
+		return count;
+	}
+
+	private void write() {
+		if (batch.length() > 0) {
+			System.out.print(batch);
+			System.out.flush();
+			batch.setLength(0);
+		}
+	}
+}
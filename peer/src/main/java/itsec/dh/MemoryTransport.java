@@ -0,0 +1,259 @@
+package itsec.dh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One end of an in-memory connection. Each direction is a ring buffer with a
+ * single writer and a single reader: both only advance their own position
+ * and read the other one, so no locks are needed. A reader waiting for data
+ * or a writer waiting for room parks and is unparked by the other side.
+ *
+ * Closing either end ends the connection: the other end reads the remaining
+ * bytes and then the end of the stream, and writes fail.
+ */
+final class MemoryTransport implements Transport {
+
+	private final Ring in;
+	private final Ring out;
+
+	private final InputStream input;
+	private final OutputStream output;
+
+	private MemoryTransport(Ring in, Ring out) {
+		this.in = in;
+		this.out = out;
+		this.input = new RingInputStream(in);
+		this.output = new RingOutputStream(out);
+	}
+
+	/**
+	 * @param capacity
+	 *            Size of each ring buffer in bytes, a power of two.
+	 * @return Both ends of a new connection.
+	 */
+	static Transport[] pair(int capacity) {
+		Ring ab = new Ring(capacity);
+		Ring ba = new Ring(capacity);
+		return new Transport[] { new MemoryTransport(ba, ab), new MemoryTransport(ab, ba) };
+	}
+
+	@Override
+	public InputStream input() {
+		return input;
+	}
+
+	@Override
+	public OutputStream output() {
+		return output;
+	}
+
+	@Override
+	public void close() {
+		in.close();
+		out.close();
+	}
+
+	@Override
+	public String toString() {
+		return "loopback";
+	}
+
+	/**
+	 * Single-producer single-consumer byte ring buffer. The positions only
+	 * grow; the buffer index is the position modulo the capacity.
+	 */
+	private static final class Ring {
+
+		private final byte[] buffer;
+		private final int mask;
+
+		/**
+		 * Next position to read, only advanced by the reader.
+		 */
+		private final AtomicLong head = new AtomicLong();
+
+		/**
+		 * Next position to write, only advanced by the writer.
+		 */
+		private final AtomicLong tail = new AtomicLong();
+
+		/*
+		 * Parked threads. A side registers before it checks the positions
+		 * once more, and the other side checks for a registered thread after
+		 * advancing its position, so no wake-up is lost.
+		 */
+		private volatile Thread waitingReader;
+		private volatile Thread waitingWriter;
+
+		private volatile boolean closed;
+
+		Ring(int capacity) {
+			if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+				throw new IllegalArgumentException("Expected the capacity to be a power of two.");
+			}
+			buffer = new byte[capacity];
+			mask = capacity - 1;
+		}
+
+		int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			long h = head.get();
+			long t;
+			while ((t = tail.get()) == h) {
+				if (closed) {
+					// the writer may have written before closing
+					if (tail.get() == h) {
+						return -1;
+					}
+					continue;
+				}
+				waitingReader = Thread.currentThread();
+				try {
+					if (tail.get() == h && !closed) {
+						park();
+					}
+				} finally {
+					waitingReader = null;
+				}
+			}
+
+			int count = (int) Math.min(len, t - h);
+			int index = (int) h & mask;
+			int first = Math.min(count, buffer.length - index);
+			System.arraycopy(buffer, index, b, off, first);
+			System.arraycopy(buffer, 0, b, off + first, count - first);
+			head.set(h + count);
+
+			Thread writer = waitingWriter;
+			if (writer != null) {
+				LockSupport.unpark(writer);
+			}
+			return count;
+		}
+
+		int available() {
+			return (int) (tail.get() - head.get());
+		}
+
+		void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (closed) {
+					throw new IOException("Connection closed by peer.");
+				}
+				long t = tail.get();
+				int free = buffer.length - (int) (t - head.get());
+				if (free == 0) {
+					waitingWriter = Thread.currentThread();
+					try {
+						if (buffer.length == tail.get() - head.get() && !closed) {
+							park();
+						}
+					} finally {
+						waitingWriter = null;
+					}
+					continue;
+				}
+
+				int count = Math.min(len, free);
+				int index = (int) t & mask;
+				int first = Math.min(count, buffer.length - index);
+				System.arraycopy(b, off, buffer, index, first);
+				System.arraycopy(b, off + first, buffer, 0, count - first);
+				tail.set(t + count);
+
+				Thread reader = waitingReader;
+				if (reader != null) {
+					LockSupport.unpark(reader);
+				}
+				off += count;
+				len -= count;
+			}
+		}
+
+		void close() {
+			closed = true;
+			Thread reader = waitingReader;
+			if (reader != null) {
+				LockSupport.unpark(reader);
+			}
+			Thread writer = waitingWriter;
+			if (writer != null) {
+				LockSupport.unpark(writer);
+			}
+		}
+
+		/**
+		 * Parks the caller, which has registered itself as waiting reader
+		 * or writer and clears only its own registration afterwards.
+		 */
+		private void park() throws InterruptedIOException {
+			LockSupport.park(this);
+			if (Thread.interrupted()) {
+				throw new InterruptedIOException("Interrupted while waiting on the loopback connection.");
+			}
+		}
+	}
+
+	private static final class RingInputStream extends InputStream {
+
+		private final Ring ring;
+		private final byte[] single = new byte[1];
+
+		RingInputStream(Ring ring) {
+			this.ring = ring;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return ring.read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return ring.read(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			return ring.available();
+		}
+
+		@Override
+		public void close() {
+			ring.close();
+		}
+	}
+
+	private static final class RingOutputStream extends OutputStream {
+
+		private final Ring ring;
+		private final byte[] single = new byte[1];
+
+		RingOutputStream(Ring ring) {
+			this.ring = ring;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte) b;
+			ring.write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ring.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			ring.close();
+		}
+	}
+}
@@ -0,0 +1,475 @@
+package itsec.dh;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Parser for the protocol messages PROP, MODP, CURVE, ACK, NAK and KEY that works directly
+ * on the received bytes. In text format, the command is recognized by its
+ * leading bytes and the numeric fields are parsed in place, so no Strings or
+ * token arrays are created. Binary frames are decoded by
+ * <code>parseFrame()</code>. A message object is meant to be reused for every
+ * message received on a connection.
+ *
+ * Like <code>Peer.tokenize()</code>, the text parser accepts runs of spaces
+ * between the fields and ignores anything after the last expected field.
+ *
+ * Keys of MODP groups exceed a long. Every non-negative key is therefore also
+ * kept as big-endian unsigned magnitude, see <code>keyMagnitude()</code>;
+ * <code>key()</code> is -1 for keys that do not fit into a long.
+ */
+final class Message {
+
+	/**
+	 * Maximum length of a single protocol line (including the line feed) or
+	 * binary frame. A KEY line of the 4096-bit MODP group has up to 1234
+	 * digits.
+	 */
+	static final int MAX_LENGTH = 1280;
+
+	static final int UNKNOWN = 0;
+	static final int PROP = 1;
+	static final int ACK = 2;
+	static final int NAK = 3;
+	static final int KEY = 4;
+	static final int MODP = 5;
+	static final int CURVE = 6;
+
+	/**
+	 * Exchange ID of messages which are not tagged, i.e., of connections
+	 * carrying a single exchange.
+	 */
+	static final int NO_ID = -1;
+
+	/**
+	 * Flag of the binary opcode that marks a frame tagged with an exchange
+	 * ID.
+	 */
+	static final int TAGGED = 0x80;
+
+	private static final long MIN_DIV_10 = Long.MIN_VALUE / 10;
+
+	private int type = UNKNOWN;
+	private int id = NO_ID;
+	private int a;
+	private int n;
+	private long key;
+	private int group;
+	private NamedCurve curve;
+
+	private final byte[] keyMagnitude = new byte[MAX_LENGTH];
+	private int keyLength;
+
+	/**
+	 * Position after the last parsed field.
+	 */
+	private int cursor;
+	private long value;
+
+	/**
+	 * Parses the line stored in <code>buf[from, to)</code> without its line
+	 * feed. A trailing carriage return is ignored. A line may be tagged with
+	 * an exchange ID by the prefix <code>"#id "</code>. The position and limit
+	 * of the buffer are not changed.
+	 *
+	 * @return The type of the message, <code>UNKNOWN</code> if the line is no
+	 *         well-formed message.
+	 */
+	int parse(ByteBuffer buf, int from, int to) {
+		type = UNKNOWN;
+
+		if (to > from && buf.get(to - 1) == '\r') {
+			to--;
+		}
+
+		id = NO_ID;
+		if (from < to && buf.get(from) == '#') {
+			int i = from + 1;
+			long tag = 0;
+			while (i < to && buf.get(i) >= '0' && buf.get(i) <= '9') {
+				tag = tag * 10 + buf.get(i) - '0';
+				if (tag > Integer.MAX_VALUE) {
+					return type;
+				}
+				i++;
+			}
+			if (i == from + 1 || i == to || buf.get(i) != ' ') {
+				return type;
+			}
+			while (i < to && buf.get(i) == ' ') {
+				i++;
+			}
+			id = (int) tag;
+			from = i;
+		}
+
+		int length = to - from;
+		if (length < 3) {
+			return type;
+		}
+
+		byte b0 = buf.get(from);
+		byte b1 = buf.get(from + 1);
+		byte b2 = buf.get(from + 2);
+
+		if (b0 == 'P' && b1 == 'R' && b2 == 'O' && length >= 4 && buf.get(from + 3) == 'P') {
+			cursor = from + 4;
+			if (!field(buf, to) || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+				return type;
+			}
+			int first = (int) value;
+			if (!field(buf, to) || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+				return type;
+			}
+			a = first;
+			n = (int) value;
+			type = PROP;
+		} else if (b0 == 'K' && b1 == 'E' && b2 == 'Y') {
+			cursor = from + 3;
+			if (field(buf, to)) {
+				key = value;
+				keyLength = 0;
+				if (key >= 0) {
+					for (int shift = 56; shift >= 0; shift -= 8) {
+						if (keyLength > 0 || (key >>> shift) != 0 || shift == 0) {
+							keyMagnitude[keyLength++] = (byte) (key >>> shift);
+						}
+					}
+				}
+			} else if (bigField(buf, from + 3, to)) {
+				key = -1;
+			} else {
+				return type;
+			}
+			type = KEY;
+		} else if (b0 == 'M' && b1 == 'O' && b2 == 'D' && length >= 4 && buf.get(from + 3) == 'P') {
+			cursor = from + 4;
+			if (!field(buf, to) || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+				return type;
+			}
+			group = (int) value;
+			type = MODP;
+		} else if (b0 == 'C' && b1 == 'U' && b2 == 'R' && length >= 5 && buf.get(from + 3) == 'V'
+				&& buf.get(from + 4) == 'E') {
+			int i = from + 5;
+			if (i >= to || buf.get(i) != ' ') {
+				return type;
+			}
+			while (i < to && buf.get(i) == ' ') {
+				i++;
+			}
+			int start = i;
+			while (i < to && buf.get(i) != ' ') {
+				i++;
+			}
+			if (i == start) {
+				return type;
+			}
+			// unknown curves are still parsed, so that they can be refused
+			curve = NamedCurve.byName(buf, start, i);
+			type = CURVE;
+		} else if (b0 == 'A' && b1 == 'C' && b2 == 'K' && endOfToken(buf, from + 3, to)) {
+			type = ACK;
+		} else if (b0 == 'N' && b1 == 'A' && b2 == 'K' && endOfToken(buf, from + 3, to)) {
+			type = NAK;
+		}
+		return type;
+	}
+
+	/**
+	 * Parses the binary frame stored in <code>buf[from, to)</code>, see
+	 * <code>WireFormat.BINARY</code>. If the opcode has the
+	 * <code>TAGGED</code> flag set, the payload starts with the exchange ID
+	 * as 4-byte int. The position and limit of the buffer are not changed.
+	 *
+	 * @return The type of the message, <code>UNKNOWN</code> if the frame is
+	 *         no well-formed message.
+	 */
+	int parseFrame(ByteBuffer buf, int from, int to) {
+		type = UNKNOWN;
+
+		if (to - from < WireFormat.HEADER) {
+			return type;
+		}
+
+		int opcode = buf.get(from) & 0xFF;
+		int length = buf.getShort(from + 1) & 0xFFFF;
+		int payload = from + WireFormat.HEADER;
+
+		if (payload + length != to) {
+			return type;
+		}
+
+		id = NO_ID;
+		if ((opcode & TAGGED) != 0) {
+			if (length < 4) {
+				return type;
+			}
+			id = buf.getInt(payload);
+			if (id < 0) {
+				return type;
+			}
+			opcode &= ~TAGGED;
+			payload += 4;
+			length -= 4;
+		}
+
+		switch (opcode) {
+		case PROP:
+			if (length == 8) {
+				a = buf.getInt(payload);
+				n = buf.getInt(payload + 4);
+				type = PROP;
+			}
+			break;
+		case ACK:
+		case NAK:
+			if (length == 0) {
+				type = opcode;
+			}
+			break;
+		case MODP:
+			if (length == 4) {
+				group = buf.getInt(payload);
+				type = MODP;
+			}
+			break;
+		case CURVE:
+			if (length == 2) {
+				curve = NamedCurve.byId(buf.getShort(payload) & 0xFFFF);
+				type = CURVE;
+			}
+			break;
+		case KEY:
+			// unsigned magnitude; key() only covers those fitting into a positive long
+			if (length >= 1) {
+				buf.get(payload, keyMagnitude, 0, length);
+				keyLength = length;
+
+				int start = payload;
+				while (start < to - 1 && buf.get(start) == 0) {
+					start++;
+				}
+				long result = -1;
+				if (to - start < 8 || (to - start == 8 && buf.get(start) >= 0)) {
+					result = 0;
+					for (int i = start; i < to; i++) {
+						result = result << 8 | (buf.get(i) & 0xFF);
+					}
+				}
+				key = result;
+				type = KEY;
+			}
+			break;
+		default:
+		}
+		return type;
+	}
+
+	/**
+	 * @return The type of the last parsed message.
+	 */
+	int type() {
+		return type;
+	}
+
+	/**
+	 * @return The exchange ID of the last parsed message, <code>NO_ID</code>
+	 *         if it was not tagged.
+	 */
+	int id() {
+		return id;
+	}
+
+	/**
+	 * @return Parameter a of a PROP message.
+	 */
+	int a() {
+		return a;
+	}
+
+	/**
+	 * @return Parameter n of a PROP message.
+	 */
+	int n() {
+		return n;
+	}
+
+	/**
+	 * @return Group number of a MODP message.
+	 */
+	int group() {
+		return group;
+	}
+
+	/**
+	 * @return Curve of a CURVE message, null if it is not supported.
+	 */
+	NamedCurve curve() {
+		return curve;
+	}
+
+	/**
+	 * @return The key of a KEY message, -1 if it does not fit into a long.
+	 */
+	long key() {
+		return key;
+	}
+
+	/**
+	 * @return The key of a KEY message as big-endian unsigned magnitude in
+	 *         the first <code>keyLength()</code> bytes. The array is reused by
+	 *         the next message.
+	 */
+	byte[] keyMagnitude() {
+		return keyMagnitude;
+	}
+
+	/**
+	 * @return The length of the magnitude of the key, 0 for negative keys.
+	 */
+	int keyLength() {
+		return keyLength;
+	}
+
+	/**
+	 * Renders the last parsed message in text format.
+	 */
+	@Override
+	public String toString() {
+		String tag = id == NO_ID ? "" : "#" + id + " ";
+		switch (type) {
+		case PROP:
+			return tag + "PROP " + a + " " + n;
+		case ACK:
+			return tag + "ACK";
+		case NAK:
+			return tag + "NAK";
+		case MODP:
+			return tag + "MODP " + group;
+		case CURVE:
+			return tag + "CURVE " + (curve == null ? "?" : curve);
+		case KEY:
+			return tag + "KEY " + (key < 0 && keyLength > 0 ? new BigInteger(1, keyMagnitude, 0, keyLength) : key);
+		default:
+			return tag + "UNKNOWN";
+		}
+	}
+
+	/**
+	 * Parses the next space-separated signed decimal field starting at
+	 * <code>cursor</code> into <code>value</code>.
+	 *
+	 * @return Whether a field was found which fits into a long.
+	 */
+	private boolean field(ByteBuffer buf, int to) {
+		int i = cursor;
+
+		// at least one separator, as the command or field must end here
+		if (i >= to || buf.get(i) != ' ') {
+			return false;
+		}
+		while (i < to && buf.get(i) == ' ') {
+			i++;
+		}
+
+		boolean negative = false;
+		if (i < to && (buf.get(i) == '-' || buf.get(i) == '+')) {
+			negative = buf.get(i) == '-';
+			i++;
+		}
+
+		int start = i;
+		long result = 0;
+		while (i < to) {
+			int digit = buf.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			// accumulate negatively, so that Long.MIN_VALUE fits as well
+			if (result < MIN_DIV_10 || (result == MIN_DIV_10 && digit > 8)) {
+				return false;
+			}
+			result = result * 10 - digit;
+			i++;
+		}
+
+		if (i == start || !endOfToken(buf, i, to)) {
+			return false;
+		}
+		if (!negative) {
+			if (result == Long.MIN_VALUE) {
+				return false;
+			}
+			result = -result;
+		}
+
+		value = result;
+		cursor = i;
+		return true;
+	}
+
+	/**
+	 * Parses an unsigned decimal field starting at <code>cursor</code> which
+	 * is too large for <code>field()</code> into the key magnitude. Chunks of
+	 * nine digits are multiplied into the magnitude, which is built up at the
+	 * end of the array and moved to its start at last.
+	 *
+	 * @return Whether a field was found.
+	 */
+	private boolean bigField(ByteBuffer buf, int from, int to) {
+		int i = from;
+		if (i >= to || buf.get(i) != ' ') {
+			return false;
+		}
+		while (i < to && buf.get(i) == ' ') {
+			i++;
+		}
+		if (i < to && buf.get(i) == '+') {
+			i++;
+		}
+
+		int start = i;
+		int end = keyMagnitude.length;
+		int first = end;
+
+		while (i < to && buf.get(i) >= '0' && buf.get(i) <= '9') {
+			long chunk = 0;
+			long factor = 1;
+			for (int d = 0; d < 9 && i < to && buf.get(i) >= '0' && buf.get(i) <= '9'; d++, i++) {
+				chunk = chunk * 10 + buf.get(i) - '0';
+				factor *= 10;
+			}
+
+			// magnitude = magnitude * factor + chunk
+			long carry = chunk;
+			for (int j = end - 1; j >= first; j--) {
+				long t = (keyMagnitude[j] & 0xFF) * factor + carry;
+				keyMagnitude[j] = (byte) t;
+				carry = t >>> 8;
+			}
+			while (carry != 0) {
+				if (first == 0) {
+					return false;
+				}
+				keyMagnitude[--first] = (byte) carry;
+				carry >>>= 8;
+			}
+		}
+
+		if (i == start || !endOfToken(buf, i, to)) {
+			return false;
+		}
+		if (first == end) {
+			keyMagnitude[--first] = 0;
+		}
+		keyLength = end - first;
+		System.arraycopy(keyMagnitude, first, keyMagnitude, 0, keyLength);
+		cursor = i;
+		return true;
+	}
+
+	private static boolean endOfToken(ByteBuffer buf, int i, int to) {
+		return i == to || buf.get(i) == ' ';
+	}
+}
@@ -0,0 +1,398 @@
+package itsec.dh;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Event-driven counterpart of <code>MessageReader</code> and the send buffer
+ * of <code>HandshakeSession</code>: a non-blocking connection on a
+ * <code>Reactor</code> which receives and sends protocol messages without a
+ * thread waiting for it.
+ *
+ * <code>receive()</code> returns a future of the next message. The channel
+ * only reads while a receive is pending, so a peer which sends ahead is
+ * slowed down by TCP instead of filling our memory. Partial messages are kept
+ * until the rest arrives. The future fails with <code>EOFException</code> if
+ * the peer closed the connection between two messages, with
+ * <code>IOException</code> if it closed it within a message or the message is
+ * too long, and with <code>SocketTimeoutException</code> if no message
+ * arrived within the idle timeout. Timeouts are counted in
+ * <code>Metrics.timeouts</code>. After a failure the connection is closed.
+ *
+ * <code>connect()</code> connects without blocking as well, with a connect
+ * timeout. Connecting or registering on a closed reactor fails with
+ * <code>ClosedChannelException</code>.
+ *
+ * The futures are completed on the loop thread, so their dependent stages
+ * must not block. Like <code>MessageReader</code>, the channel parses every
+ * message into the same <code>Message</code>, which is therefore only valid
+ * until the next <code>receive()</code>. Stages running on another executor
+ * may use it without a copy as long as the next receive is issued after
+ * them, as a single exchange does.
+ */
+final class MessageChannel implements Reactor.Handler, Closeable {
+
+	private final Reactor reactor;
+	private final SocketChannel channel;
+	private final long idleNanos;
+
+	private final ByteBuffer in = ByteBuffer.allocate(Message.MAX_LENGTH);
+	private final ByteBuffer out = ByteBuffer.allocate(8 * Message.MAX_LENGTH).flip();
+	private final Message message = new Message();
+
+	/**
+	 * Position in the output stream up to which each pending send completes.
+	 */
+	private final Queue<Long> sendEnds = new ArrayDeque<>();
+	private final Queue<CompletableFuture<Void>> sends = new ArrayDeque<>();
+	private long written;
+	private long queued;
+
+	private SelectionKey key;
+	private WireFormat format;
+
+	private CompletableFuture<Message> receive;
+	private Reactor.Timer idleTimer;
+
+	/**
+	 * Pending connect and its <code>System.nanoTime()</code>.
+	 */
+	private CompletableFuture<MessageChannel> connecting;
+	private long connectStart;
+
+	private IOException failure;
+
+	/**
+	 * Registers a connected channel on the reactor.
+	 *
+	 * @param reactor
+	 *            Loop to drive the channel.
+	 * @param channel
+	 *            Connected channel, switched to non-blocking mode.
+	 * @param format
+	 *            Wire format, or null to detect it from the first received
+	 *            byte (passive side).
+	 * @param idleTimeout
+	 *            Time in milliseconds a receive waits for its message, 0 for
+	 *            no limit.
+	 * @return The future of the registered channel.
+	 */
+	static CompletableFuture<MessageChannel> register(Reactor reactor, SocketChannel channel, WireFormat format,
+			int idleTimeout) {
+		CompletableFuture<MessageChannel> registered = new CompletableFuture<>();
+		reactor.execute(() -> {
+			try {
+				channel.configureBlocking(false);
+				MessageChannel messages = new MessageChannel(reactor, channel, format, idleTimeout);
+				messages.key = reactor.register(channel, 0, messages);
+				registered.complete(messages);
+			} catch (IOException e) {
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+					// the registration failed anyway
+				}
+				registered.completeExceptionally(e);
+			}
+		});
+		return registered;
+	}
+
+	/**
+	 * Connects a new channel without blocking and registers it on the
+	 * reactor.
+	 *
+	 * @param reactor
+	 *            Loop to drive the channel.
+	 * @param address
+	 *            Destination.
+	 * @param format
+	 *            Wire format to use.
+	 * @param connectTimeout
+	 *            Timeout of connecting in milliseconds, 0 for none. It is
+	 *            counted in <code>Metrics.timeouts</code>.
+	 * @param idleTimeout
+	 *            Time in milliseconds a receive waits for its message, 0 for
+	 *            no limit.
+	 * @return The future of the connected channel.
+	 */
+	static CompletableFuture<MessageChannel> connect(Reactor reactor, InetSocketAddress address, WireFormat format,
+			int connectTimeout, int idleTimeout) {
+		CompletableFuture<MessageChannel> connected = new CompletableFuture<>();
+		reactor.execute(() -> {
+			SocketChannel channel = null;
+			try {
+				long start = System.nanoTime();
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+				MessageChannel messages = new MessageChannel(reactor, channel, format, idleTimeout);
+				messages.connecting = connected;
+				messages.connectStart = start;
+				// register first, a closed reactor must not open a connection
+				messages.key = reactor.register(channel, 0, messages);
+				if (channel.connect(address)) {
+					messages.connected();
+				} else {
+					messages.key.interestOps(SelectionKey.OP_CONNECT);
+					if (connectTimeout > 0) {
+						messages.idleTimer = reactor.schedule(connectTimeout * 1000000L, () -> {
+							messages.idleTimer = null;
+							Metrics.DEFAULT.timeouts.increment();
+							messages.fail(new SocketTimeoutException("Connecting to " + address + " timed out."));
+						});
+					}
+				}
+			} catch (IOException e) {
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException ignored) {
+						// the connect failed anyway
+					}
+				}
+				connected.completeExceptionally(e);
+			}
+		});
+		return connected;
+	}
+
+	private MessageChannel(Reactor reactor, SocketChannel channel, WireFormat format, int idleTimeout) {
+		this.reactor = reactor;
+		this.channel = channel;
+		this.format = format;
+		this.idleNanos = idleTimeout * 1000000L;
+	}
+
+	Reactor reactor() {
+		return reactor;
+	}
+
+	SocketChannel channel() {
+		return channel;
+	}
+
+	/**
+	 * @return The wire format of the connection, <code>TEXT</code> if it has
+	 *         not been set or detected yet.
+	 */
+	WireFormat format() {
+		return format == null ? WireFormat.TEXT : format;
+	}
+
+	/**
+	 * Waits for the next message without blocking. Only one receive may be
+	 * pending at a time.
+	 *
+	 * @return Future of the message. The object is reused by the next
+	 *         receive.
+	 */
+	CompletableFuture<Message> receive() {
+		CompletableFuture<Message> future = new CompletableFuture<>();
+		reactor.execute(() -> {
+			if (failure != null) {
+				future.completeExceptionally(failure);
+			} else if (receive != null) {
+				future.completeExceptionally(new IllegalStateException("A receive is already pending."));
+			} else {
+				receive = future;
+				if (!deliver()) {
+					if (idleNanos > 0) {
+						idleTimer = reactor.schedule(idleNanos, this::idle);
+					}
+					interest(SelectionKey.OP_READ, true);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Encodes a message in the wire format of the connection and sends it
+	 * without blocking.
+	 *
+	 * @param message
+	 *            Encoder of the message, e.g.
+	 *            <code>(format, out) -> format.ack(out, id)</code>. It is
+	 *            called on the loop thread.
+	 * @return Future completed once the message is handed to the kernel.
+	 */
+	CompletableFuture<Void> send(BiConsumer<WireFormat, ByteBuffer> message) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		reactor.execute(() -> {
+			if (failure != null) {
+				future.completeExceptionally(failure);
+				return;
+			}
+			out.compact();
+			if (out.remaining() < Message.MAX_LENGTH) {
+				out.flip();
+				future.completeExceptionally(new IOException("Too many messages waiting to be sent."));
+				return;
+			}
+			int start = out.position();
+			message.accept(format(), out);
+			queued += out.position() - start;
+			out.flip();
+
+			sendEnds.add(queued);
+			sends.add(future);
+			try {
+				write();
+			} catch (IOException e) {
+				fail(e);
+			}
+		});
+		return future;
+	}
+
+	@Override
+	public void ready(SelectionKey key) throws IOException {
+		if (key.isConnectable()) {
+			channel.finishConnect();
+			connected();
+			return;
+		}
+		if (key.isWritable()) {
+			write();
+		}
+		if (key.isValid() && key.isReadable()) {
+			read();
+		}
+	}
+
+	private void connected() {
+		if (idleTimer != null) {
+			idleTimer.cancel();
+			idleTimer = null;
+		}
+		key.interestOps(0);
+		Metrics.DEFAULT.connect.recordSince(connectStart);
+		CompletableFuture<MessageChannel> future = connecting;
+		connecting = null;
+		future.complete(this);
+	}
+
+	private void read() throws IOException {
+		if (channel.read(in) < 0) {
+			throw in.position() == 0 ? new EOFException("Connection closed by peer.")
+					: new IOException("Connection closed by peer within a message.");
+		}
+		if (deliver()) {
+			return;
+		}
+		if (!in.hasRemaining()) {
+			throw new IOException("Message exceeds " + Message.MAX_LENGTH + " bytes.");
+		}
+	}
+
+	/**
+	 * Completes the pending receive with the next buffered message, if it is
+	 * complete.
+	 */
+	private boolean deliver() {
+		if (receive == null || in.position() == 0) {
+			return false;
+		}
+		if (format == null) {
+			format = WireFormat.detect(in.get(0));
+		}
+		int end = format.frame(in, 0, in.position());
+		if (end < 0) {
+			return false;
+		}
+
+		format.parse(message, in, 0, end);
+		in.flip();
+		in.position(end);
+		in.compact();
+		if (message.type() == Message.UNKNOWN) {
+			Metrics.DEFAULT.parseErrors.increment();
+		}
+
+		CompletableFuture<Message> future = receive;
+		receive = null;
+		if (idleTimer != null) {
+			idleTimer.cancel();
+			idleTimer = null;
+		}
+		interest(SelectionKey.OP_READ, false);
+		future.complete(message);
+		return true;
+	}
+
+	private void write() throws IOException {
+		written += channel.write(out);
+		while (!sendEnds.isEmpty() && sendEnds.peek() <= written) {
+			sendEnds.poll();
+			sends.poll().complete(null);
+		}
+		interest(SelectionKey.OP_WRITE, out.hasRemaining());
+	}
+
+	private void interest(int op, boolean on) {
+		if (key.isValid()) {
+			key.interestOps(on ? key.interestOps() | op : key.interestOps() & ~op);
+		}
+	}
+
+	private void idle() {
+		idleTimer = null;
+		Metrics.DEFAULT.timeouts.increment();
+		Reactor.close(key);
+		fail(new SocketTimeoutException("No message within " + idleNanos / 1000000 + " ms."));
+	}
+
+	@Override
+	public void failed(IOException e) {
+		fail(e);
+	}
+
+	private void fail(IOException e) {
+		if (failure != null) {
+			return;
+		}
+		failure = e;
+		Reactor.close(key);
+		if (idleTimer != null) {
+			idleTimer.cancel();
+			idleTimer = null;
+		}
+		if (connecting != null) {
+			CompletableFuture<MessageChannel> future = connecting;
+			connecting = null;
+			future.completeExceptionally(e);
+		}
+		if (receive != null) {
+			CompletableFuture<Message> future = receive;
+			receive = null;
+			future.completeExceptionally(e);
+		}
+		CompletableFuture<Void> send;
+		while ((send = sends.poll()) != null) {
+			send.completeExceptionally(e);
+		}
+		sendEnds.clear();
+	}
+
+	/**
+	 * Closes the connection. Pending receives and sends fail.
+	 */
+	@Override
+	public void close() {
+		reactor.execute(() -> fail(new ClosedChannelException()));
+	}
+}
@@ -0,0 +1,100 @@
+package itsec.dh;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Blocking reader for the protocol messages received on a stream. The
+ * received bytes are kept in a buffer of its own and every message is parsed
+ * in place into a single, reused <code>Message</code>.
+ *
+ * Unless set by <code>format()</code>, the wire format is detected from the
+ * first received byte.
+ */
+final class MessageReader {
+
+	private final InputStream inputStream;
+
+	/**
+	 * Received bytes; <code>[start, limit)</code> is not yet consumed.
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocate(Message.MAX_LENGTH);
+	private int start;
+	private int limit;
+
+	private final Message message = new Message();
+
+	private WireFormat format;
+
+	/**
+	 * @param in
+	 *            Stream of messages from the other peer.
+	 */
+	MessageReader(InputStream in) {
+		this.inputStream = in;
+	}
+
+	/**
+	 * Sets the wire format instead of detecting it.
+	 */
+	void format(WireFormat format) {
+		this.format = format;
+	}
+
+	/**
+	 * @return The wire format of the stream, <code>TEXT</code> if it has not
+	 *         been set or detected yet.
+	 */
+	WireFormat format() {
+		return format == null ? WireFormat.TEXT : format;
+	}
+
+	/**
+	 * Waits (blocking) for the next message.
+	 *
+	 * @return The message received. The object is reused by the next call.
+	 * @throws EOFException
+	 *             If the stream was closed between two messages.
+	 * @throws IOException
+	 *             If the stream failed, was closed within a message or the
+	 *             message is too long.
+	 */
+	Message read() throws IOException {
+		byte[] bytes = buffer.array();
+
+		while (true) {
+			if (limit > start) {
+				if (format == null) {
+					format = WireFormat.detect(bytes[start]);
+				}
+
+				int end = format.frame(buffer, start, limit);
+				if (end >= 0) {
+					format.parse(message, buffer, start, end);
+					start = end;
+					return message;
+				}
+			}
+
+			if (start > 0) {
+				System.arraycopy(bytes, start, bytes, 0, limit - start);
+				limit -= start;
+				start = 0;
+			}
+			if (limit == bytes.length) {
+				throw new IOException("Message exceeds " + Message.MAX_LENGTH + " bytes.");
+			}
+
+			int read = inputStream.read(bytes, limit, bytes.length - limit);
+			if (read < 0) {
+				if (limit == start) {
+					throw new EOFException("Connection closed by peer.");
+				}
+				throw new IOException("Connection closed by peer.");
+			}
+			limit += read;
+		}
+	}
+}
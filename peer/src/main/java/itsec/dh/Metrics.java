@@ -0,0 +1,268 @@
+package itsec.dh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Registry of the metrics of the key exchange: counters (<code>LongAdder</code>)
+ * and latency histograms in nanoseconds (<code>Histogram</code>), by name. The
+ * metrics of the handshake are fields of the registry, so recording them
+ * costs no lookup:
+ *
+ * <ul>
+ * <li><code>connect</code> - active peer connecting to the passive one</li>
+ * <li><code>accept</code> - from accepting a connection until it is
+ * served</li>
+ * <li><code>proposal</code> - round trip from PROP (or MODP, CURVE) to ACK or
+ * NAK</li>
+ * <li><code>keyGeneration</code> - secret and our exchange key</li>
+ * <li><code>keyExchange</code> - round trip of the KEY messages</li>
+ * <li><code>handshake</code> - from the proposal to the shared key</li>
+ * </ul>
+ *
+ * The registry is exported by <code>export()</code>: as MBean
+ * <code>itsec.dh:type=Metrics</code>, and in the Prometheus text format at
+ * <code>http://127.0.0.1:port/metrics</code>, where histograms are rendered
+ * as summaries with quantiles in seconds.
+ */
+final class Metrics {
+
+	/**
+	 * Registry shared by all components of this JVM.
+	 */
+	static final Metrics DEFAULT = new Metrics();
+
+	/**
+	 * System property with the port of the text endpoint, -1 disables it.
+	 */
+	static final String PORT_PROPERTY = "itsec.dh.metrics.port";
+
+	static final int DEFAULT_PORT = 9464;
+
+	private static final String PREFIX = "dh_";
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+	private final Map<String, String> help = new ConcurrentSkipListMap<>();
+
+	final Histogram connect = histogram("connect_seconds", "Time to connect to the passive peer.");
+	final Histogram accept = histogram("accept_seconds", "Time from accepting a connection until it is served.");
+	final Histogram proposal = histogram("proposal_seconds", "Round trip from the proposal to ACK or NAK.");
+	final Histogram keyGeneration = histogram("key_generation_seconds", "Time to generate the secret and our key.");
+	final Histogram keyExchange = histogram("key_exchange_seconds", "Round trip of the KEY messages.");
+	final Histogram handshake = histogram("handshake_seconds", "Time from the proposal to the shared key.");
+
+	final LongAdder handshakes = counter("handshakes_total", "Completed handshakes.");
+	final LongAdder naks = counter("naks_total", "Proposals refused with NAK, sent or received.");
+	final LongAdder timeouts = counter("timeouts_total", "Connections or messages which timed out.");
+	final LongAdder parseErrors = counter("parse_errors_total", "Received messages which could not be parsed.");
+
+	private boolean exported;
+
+	/**
+	 * @return The counter of the name, registered on first use.
+	 * @throws IllegalArgumentException
+	 *             If the name is taken by a histogram.
+	 */
+	LongAdder counter(String name, String description) {
+		return register(name, description, LongAdder.class);
+	}
+
+	/**
+	 * @return The histogram of the name, registered on first use.
+	 * @throws IllegalArgumentException
+	 *             If the name is taken by a counter.
+	 */
+	Histogram histogram(String name, String description) {
+		return register(name, description, Histogram.class);
+	}
+
+	private <T> T register(String name, String description, Class<T> type) {
+		Object metric = metrics.computeIfAbsent(name, key -> {
+			help.put(key, description);
+			return type == Histogram.class ? new Histogram() : new LongAdder();
+		});
+		if (!type.isInstance(metric)) {
+			throw new IllegalArgumentException("Metric " + name + " is no " + type.getSimpleName() + ".");
+		}
+		return type.cast(metric);
+	}
+
+	/**
+	 * Registers the MBean and starts the text endpoint on the port given by
+	 * the system property <code>itsec.dh.metrics.port</code>, unless done
+	 * before. Failures are logged, as metrics are no reason not to serve.
+	 */
+	synchronized void export() {
+		if (exported) {
+			return;
+		}
+		exported = true;
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(new MBean(), new ObjectName("itsec.dh:type=Metrics"));
+		} catch (JMException e) {
+			Log.DEFAULT.warn("Metrics MBean not registered: " + e.getLocalizedMessage());
+		}
+
+		int port = Integer.getInteger(PORT_PROPERTY, DEFAULT_PORT);
+		if (port < 0) {
+			return;
+		}
+		try {
+			HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			server.createContext("/metrics", exchange -> {
+				byte[] body = render().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			server.start();
+			Log.DEFAULT.info("Metrics at http://" + server.getAddress().getHostString() + ":"
+					+ server.getAddress().getPort() + "/metrics");
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Metrics endpoint not started: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Renders all metrics in the Prometheus text format.
+	 */
+	String render() {
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+			String name = PREFIX + entry.getKey();
+			out.append("# HELP ").append(name).append(' ').append(help.get(entry.getKey())).append('\n');
+
+			if (entry.getValue() instanceof LongAdder counter) {
+				out.append("# TYPE ").append(name).append(" counter\n");
+				out.append(name).append(' ').append(counter.sum()).append('\n');
+			} else {
+				Histogram histogram = (Histogram) entry.getValue();
+				long[] values = histogram.quantiles(QUANTILES);
+				out.append("# TYPE ").append(name).append(" summary\n");
+				for (int i = 0; i < QUANTILES.length; i++) {
+					out.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ")
+							.append(seconds(values[i])).append('\n');
+				}
+				out.append(name).append("_sum ").append(seconds(histogram.sum())).append('\n');
+				out.append(name).append("_count ").append(histogram.count()).append('\n');
+			}
+		}
+		return out.toString();
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	/**
+	 * Read-only view of the registry for JMX. Counters are attributes of their
+	 * name, histograms have the attributes <code>name_p50</code>,
+	 * <code>_p90</code>, <code>_p99</code>, <code>_p999</code> and
+	 * <code>_max</code> in seconds, and <code>_count</code>.
+	 */
+	private final class MBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Object metric = metrics.get(attribute);
+			if (metric instanceof LongAdder counter) {
+				return counter.sum();
+			}
+
+			int separator = attribute.lastIndexOf('_');
+			if (separator > 0 && metrics.get(attribute.substring(0, separator)) instanceof Histogram histogram) {
+				switch (attribute.substring(separator + 1)) {
+				case "p50":
+					return seconds(histogram.quantiles(0.5)[0]);
+				case "p90":
+					return seconds(histogram.quantiles(0.9)[0]);
+				case "p99":
+					return seconds(histogram.quantiles(0.99)[0]);
+				case "p999":
+					return seconds(histogram.quantiles(0.999)[0]);
+				case "max":
+					return seconds(histogram.max());
+				case "count":
+					return histogram.count();
+				default:
+				}
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				try {
+					list.add(new Attribute(attribute, getAttribute(attribute)));
+				} catch (AttributeNotFoundException e) {
+					// left out, as specified for getAttributes()
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only.");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations.");
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<>();
+			for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+				String name = entry.getKey();
+				if (entry.getValue() instanceof LongAdder) {
+					attributes.add(new MBeanAttributeInfo(name, "long", help.get(name), true, false, false));
+				} else {
+					for (String suffix : new String[] { "p50", "p90", "p99", "p999", "max" }) {
+						attributes.add(new MBeanAttributeInfo(name + "_" + suffix, "double", help.get(name), true,
+								false, false));
+					}
+					attributes.add(new MBeanAttributeInfo(name + "_count", "long", help.get(name), true, false,
+							false));
+				}
+			}
+			return new MBeanInfo(Metrics.class.getName(), "Metrics of the Diffie-Hellman key exchange.",
+					attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+		}
+	}
+}
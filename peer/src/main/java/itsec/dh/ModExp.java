@@ -0,0 +1,129 @@
+package itsec.dh;
+
+import java.math.BigInteger;
+
+/**
+ * Modular exponentiation on primitive longs for moduli below 2^31. Since both
+ * factors of every multiplication are smaller than the modulus, each product
+ * fits into a long and no intermediate objects are needed.
+ *
+ * Two engines are provided: a plain right-to-left square-and-multiply, which
+ * reduces every product with a division, and a Montgomery variant for odd
+ * moduli, which replaces these divisions by multiplications and shifts.
+ * <code>pow()</code> selects the engine for a given modulus.
+ */
+final class ModExp {
+
+	private static final long MASK = 0xFFFFFFFFL;
+
+	private ModExp() {
+	}
+
+	/**
+	 * Computes base^exp mod mod with the fastest engine applicable.
+	 * Negative exponents and non-positive moduli are left to
+	 * <code>BigInteger.modPow()</code>, which also reports the errors.
+	 *
+	 * @param base
+	 *            The base.
+	 * @param exp
+	 *            The exponent.
+	 * @param mod
+	 *            The modulus.
+	 * @return base^exp mod mod
+	 */
+	static long pow(long base, long exp, int mod) {
+		if (mod <= 0 || exp < 0) {
+			return bigInteger(base, exp, mod);
+		}
+		if ((mod & 1) == 1) {
+			return montgomery(base, exp, mod);
+		}
+		return squareMultiply(base, exp, mod);
+	}
+
+	/**
+	 * Right-to-left binary exponentiation with a remainder after every
+	 * multiplication.
+	 *
+	 * @param mod
+	 *            The modulus (positive).
+	 */
+	static long squareMultiply(long base, long exp, int mod) {
+		long result = 1 % mod;
+		long b = reduce(base, mod);
+
+		while (exp > 0) {
+			if ((exp & 1) == 1) {
+				result = result * b % mod;
+			}
+			b = b * b % mod;
+			exp >>>= 1;
+		}
+		return result;
+	}
+
+	/**
+	 * Binary exponentiation in Montgomery form with R = 2^32. Only two
+	 * divisions remain, both for converting into Montgomery form.
+	 *
+	 * @param mod
+	 *            The modulus (positive and odd).
+	 */
+	static long montgomery(long base, long exp, int mod) {
+		if (mod == 1) {
+			return 0;
+		}
+
+		/*
+		 * Newton iteration for mod^-1 mod 2^32: every step doubles the number
+		 * of correct low bits, starting with 3 for any odd number.
+		 */
+		int inv = mod;
+		inv *= 2 - mod * inv;
+		inv *= 2 - mod * inv;
+		inv *= 2 - mod * inv;
+		inv *= 2 - mod * inv;
+		long negInv = -inv & MASK;
+
+		long result = (1L << 32) % mod;
+		long b = (reduce(base, mod) << 32) % mod;
+
+		while (exp > 0) {
+			if ((exp & 1) == 1) {
+				result = redc(result * b, mod, negInv);
+			}
+			b = redc(b * b, mod, negInv);
+			exp >>>= 1;
+		}
+		return redc(result, mod, negInv);
+	}
+
+	/**
+	 * Reference implementation based on <code>BigInteger.modPow()</code>.
+	 */
+	static long bigInteger(long base, long exp, int mod) {
+		BigInteger bigA = BigInteger.valueOf(base);
+		BigInteger bigExp = BigInteger.valueOf(exp);
+		BigInteger bigMod = BigInteger.valueOf(mod);
+
+		BigInteger key = bigA.modPow(bigExp, bigMod);
+		return key.longValue();
+	}
+
+	/**
+	 * Montgomery reduction: t * 2^-32 mod mod for 0 &lt;= t &lt; mod * 2^32.
+	 * The sum t + m * mod may exceed the signed range but stays below 2^64,
+	 * so the unsigned shift yields the right quotient.
+	 */
+	private static long redc(long t, int mod, long negInv) {
+		long m = (t & MASK) * negInv & MASK;
+		long u = (t + m * mod) >>> 32;
+		return u >= mod ? u - mod : u;
+	}
+
+	private static long reduce(long value, int mod) {
+		long r = value % mod;
+		return r < 0 ? r + mod : r;
+	}
+}
@@ -0,0 +1,374 @@
+package itsec.dh;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Modular exponentiation for one large odd modulus, e.g. of a MODP group, on
+ * arrays of 64-bit limbs (least significant limb first). Everything that
+ * depends only on the modulus is computed once per context: -n^-1 mod 2^64,
+ * R^2 mod n with R = 2^(64k), and a fixed-base table for the generator.
+ *
+ * Powers of the generator are products of table entries, reduced with the
+ * CIOS (coarsely integrated operand scanning) Montgomery multiplication. All
+ * intermediate values live in a workspace of preallocated arrays per thread,
+ * so such an exponentiation creates no objects.
+ *
+ * Values passed in and returned are plain residues below the modulus,
+ * exponents are plain non-negative numbers of any number of limbs.
+ */
+final class MontgomeryContext {
+
+	/**
+	 * Width of the exponent digits of the fixed-base exponentiation.
+	 */
+	private static final int WINDOW = 4;
+	private static final int DIGITS = 1 << WINDOW;
+
+	private final BigInteger modulus;
+	private final int k;
+	private final long[] n;
+	private final long negInv;
+	private final long[] r2;
+	private final long[] one;
+
+	private final long[] generator;
+
+	/**
+	 * Fixed-base table: entry [i][d] is g^(d * 2^(WINDOW*i)) in Montgomery
+	 * form. Built on the first exponentiation of the generator.
+	 */
+	private volatile long[][][] generatorTable;
+
+	private final ThreadLocal<Workspace> workspaces;
+
+	/**
+	 * @param modulus
+	 *            Odd modulus greater than 1.
+	 * @param generator
+	 *            Generator used by <code>powGenerator()</code>.
+	 */
+	MontgomeryContext(BigInteger modulus, BigInteger generator) {
+		if (modulus.signum() <= 0 || !modulus.testBit(0) || modulus.equals(BigInteger.ONE)) {
+			throw new IllegalArgumentException("Expected an odd modulus greater than 1.");
+		}
+		this.modulus = modulus;
+		this.k = (modulus.bitLength() + 63) / 64;
+		this.n = toLimbs(modulus, k);
+
+		// Newton iteration for n^-1 mod 2^64, see ModExp.montgomery()
+		long inv = n[0];
+		for (int i = 0; i < 5; i++) {
+			inv *= 2 - n[0] * inv;
+		}
+		this.negInv = -inv;
+
+		BigInteger r = BigInteger.ONE.shiftLeft(64 * k);
+		this.one = toLimbs(r.mod(modulus), k);
+		this.r2 = toLimbs(r.multiply(r).mod(modulus), k);
+		this.generator = toLimbs(generator.mod(modulus), k);
+
+		this.workspaces = ThreadLocal.withInitial(() -> new Workspace(k));
+	}
+
+	/**
+	 * @return The number of limbs of residues of this context.
+	 */
+	int limbs() {
+		return k;
+	}
+
+	/**
+	 * @return A new array for a residue of this context.
+	 */
+	long[] newResidue() {
+		return new long[k];
+	}
+
+	/**
+	 * Computes base^exp mod n. For a variable base a precomputed table does
+	 * not pay off, and <code>BigInteger.modPow()</code> is backed by the
+	 * Montgomery multiply and square intrinsics of HotSpot, which take about a
+	 * third of the time of a fixed-window exponentiation with the portable
+	 * CIOS loop (see <code>ModpBenchmark</code>). Unlike
+	 * <code>powGenerator()</code>, this method therefore allocates: the
+	 * operands are converted once and the result is decoded into the limbs.
+	 *
+	 * @param base
+	 *            Residue below the modulus.
+	 * @param exp
+	 *            Exponent.
+	 * @param result
+	 *            Array of <code>limbs()</code> limbs receiving the result. It
+	 *            may be the base itself.
+	 */
+	void pow(long[] base, long[] exp, long[] result) {
+		byte[] value = toBigInteger(base).modPow(toBigInteger(exp), modulus).toByteArray();
+		decode(value, value.length, result);
+	}
+
+	/**
+	 * Computes g^exp mod n for the generator g of the context with the
+	 * fixed-base table, i.e. with one multiplication per exponent digit and no
+	 * squarings.
+	 *
+	 * @param exp
+	 *            Exponent.
+	 * @param result
+	 *            Array of <code>limbs()</code> limbs receiving the result.
+	 */
+	void powGenerator(long[] exp, long[] result) {
+		Workspace ws = workspaces.get();
+		int digits = digits(exp);
+		long[][][] table = generatorTable(digits);
+
+		long[] acc = ws.acc;
+		System.arraycopy(one, 0, acc, 0, k);
+		for (int i = 0; i < digits; i++) {
+			int d = digit(exp, i);
+			if (d != 0) {
+				multiply(acc, table[i][d], acc, ws.t);
+			}
+		}
+		fromMontgomery(acc, result, ws);
+	}
+
+	/**
+	 * Checks a received public key: 1 &lt; y &lt; n - 1. The excluded
+	 * values only generate subgroups of order 1 and 2.
+	 */
+	boolean isValidKey(long[] y) {
+		boolean aboveOne = y[0] > 1 || y[0] < 0;
+		for (int i = 1; i < k && !aboveOne; i++) {
+			aboveOne = y[i] != 0;
+		}
+		if (!aboveOne) {
+			return false;
+		}
+		// y < n - 1, where n - 1 only differs from n in the lowest bit
+		for (int i = k - 1; i > 0; i--) {
+			if (y[i] != n[i]) {
+				return Long.compareUnsigned(y[i], n[i]) < 0;
+			}
+		}
+		return Long.compareUnsigned(y[0], n[0] - 1) < 0;
+	}
+
+	/**
+	 * Reads a big-endian unsigned magnitude.
+	 *
+	 * @return Whether the value has at most <code>limbs()</code> limbs.
+	 */
+	boolean decode(byte[] magnitude, int length, long[] value) {
+		int start = 0;
+		while (start < length && magnitude[start] == 0) {
+			start++;
+		}
+		if (length - start > 8 * k) {
+			return false;
+		}
+		Arrays.fill(value, 0);
+		for (int i = start, shift = 8 * (length - 1 - start); i < length; i++, shift -= 8) {
+			value[shift >>> 6] |= (magnitude[i] & 0xFFL) << (shift & 63);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a value as big-endian unsigned magnitude without leading zeros
+	 * (at least one byte).
+	 *
+	 * @param magnitude
+	 *            Array of at least <code>8 * limbs()</code> bytes.
+	 * @return The length of the magnitude.
+	 */
+	static int encode(long[] value, byte[] magnitude) {
+		int bits = 0;
+		for (int i = value.length - 1; i >= 0; i--) {
+			if (value[i] != 0) {
+				bits = 64 * i + 64 - Long.numberOfLeadingZeros(value[i]);
+				break;
+			}
+		}
+		int length = Math.max(1, (bits + 7) / 8);
+		for (int i = 0, shift = 8 * (length - 1); i < length; i++, shift -= 8) {
+			magnitude[i] = (byte) (value[shift >>> 6] >>> (shift & 63));
+		}
+		return length;
+	}
+
+	/**
+	 * @return The value of a limb array.
+	 */
+	static BigInteger toBigInteger(long[] value) {
+		byte[] magnitude = new byte[8 * value.length];
+		int length = encode(value, magnitude);
+		return new BigInteger(1, magnitude, 0, length);
+	}
+
+	/**
+	 * @return The limbs of a non-negative value below 2^(64 * limbs).
+	 */
+	static long[] toLimbs(BigInteger value, int limbs) {
+		long[] result = new long[limbs];
+		for (int i = 0; i < limbs; i++) {
+			result[i] = value.shiftRight(64 * i).longValue();
+		}
+		return result;
+	}
+
+	private long[][][] generatorTable(int digits) {
+		long[][][] table = generatorTable;
+		if (table == null || table.length < digits) {
+			synchronized (this) {
+				table = generatorTable;
+				if (table == null || table.length < digits) {
+					table = buildGeneratorTable(digits);
+					generatorTable = table;
+				}
+			}
+		}
+		return table;
+	}
+
+	private long[][][] buildGeneratorTable(int digits) {
+		long[] t = new long[k + 2];
+		long[][][] table = new long[digits][DIGITS][k];
+
+		long[] base = new long[k];
+		multiply(generator, r2, base, t);
+
+		for (int i = 0; i < digits; i++) {
+			System.arraycopy(one, 0, table[i][0], 0, k);
+			for (int d = 1; d < DIGITS; d++) {
+				multiply(table[i][d - 1], base, table[i][d], t);
+			}
+			// base^(2^WINDOW) for the next digit
+			multiply(table[i][DIGITS - 1], base, base, t);
+		}
+		return table;
+	}
+
+	private void fromMontgomery(long[] value, long[] result, Workspace ws) {
+		Arrays.fill(ws.unit, 0);
+		ws.unit[0] = 1;
+		multiply(value, ws.unit, result, ws.t);
+	}
+
+	/**
+	 * @return The number of WINDOW-bit digits of the exponent.
+	 */
+	private static int digits(long[] exp) {
+		for (int i = exp.length - 1; i >= 0; i--) {
+			if (exp[i] != 0) {
+				return (64 * i + 64 - Long.numberOfLeadingZeros(exp[i]) + WINDOW - 1) / WINDOW;
+			}
+		}
+		return 0;
+	}
+
+	private static int digit(long[] exp, int i) {
+		// WINDOW divides 64, so a digit never spans two limbs
+		int bit = i * WINDOW;
+		return (int) (exp[bit >>> 6] >>> (bit & 63)) & (DIGITS - 1);
+	}
+
+	/**
+	 * CIOS Montgomery multiplication: result = a * b * R^-1 mod n. The result
+	 * may alias a or b.
+	 *
+	 * @param t
+	 *            Scratch array of k + 2 limbs.
+	 */
+	private void multiply(long[] a, long[] b, long[] result, long[] t) {
+		Arrays.fill(t, 0);
+
+		for (int i = 0; i < k; i++) {
+			// t += a[i] * b
+			long ai = a[i];
+			long carry = 0;
+			for (int j = 0; j < k; j++) {
+				long lo = ai * b[j];
+				long hi = Math.unsignedMultiplyHigh(ai, b[j]);
+				lo += t[j];
+				if (Long.compareUnsigned(lo, t[j]) < 0) {
+					hi++;
+				}
+				lo += carry;
+				if (Long.compareUnsigned(lo, carry) < 0) {
+					hi++;
+				}
+				t[j] = lo;
+				carry = hi;
+			}
+			long sum = t[k] + carry;
+			t[k + 1] = Long.compareUnsigned(sum, carry) < 0 ? 1 : 0;
+			t[k] = sum;
+
+			// t = (t + m * n) / 2^64, where m makes the lowest limb vanish
+			long m = t[0] * negInv;
+			long lo = m * n[0];
+			long hi = Math.unsignedMultiplyHigh(m, n[0]);
+			lo += t[0];
+			if (Long.compareUnsigned(lo, t[0]) < 0) {
+				hi++;
+			}
+			carry = hi;
+			for (int j = 1; j < k; j++) {
+				lo = m * n[j];
+				hi = Math.unsignedMultiplyHigh(m, n[j]);
+				lo += t[j];
+				if (Long.compareUnsigned(lo, t[j]) < 0) {
+					hi++;
+				}
+				lo += carry;
+				if (Long.compareUnsigned(lo, carry) < 0) {
+					hi++;
+				}
+				t[j - 1] = lo;
+				carry = hi;
+			}
+			sum = t[k] + carry;
+			t[k - 1] = sum;
+			t[k] = t[k + 1] + (Long.compareUnsigned(sum, carry) < 0 ? 1 : 0);
+		}
+
+		// t < 2n, a single subtraction brings it below n
+		boolean subtract = t[k] != 0;
+		if (!subtract) {
+			subtract = true;
+			for (int i = k - 1; i >= 0; i--) {
+				if (t[i] != n[i]) {
+					subtract = Long.compareUnsigned(t[i], n[i]) > 0;
+					break;
+				}
+			}
+		}
+		if (subtract) {
+			long borrow = 0;
+			for (int i = 0; i < k; i++) {
+				long diff = t[i] - n[i] - borrow;
+				borrow = Long.compareUnsigned(t[i], n[i]) < 0 || (t[i] == n[i] && borrow != 0) ? 1 : 0;
+				result[i] = diff;
+			}
+		} else {
+			System.arraycopy(t, 0, result, 0, k);
+		}
+	}
+
+	/**
+	 * Preallocated arrays of one thread.
+	 */
+	private static final class Workspace {
+
+		final long[] t;
+		final long[] acc;
+		final long[] unit;
+
+		Workspace(int k) {
+			t = new long[k + 2];
+			acc = new long[k];
+			unit = new long[k];
+		}
+	}
+}
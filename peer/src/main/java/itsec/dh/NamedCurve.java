@@ -0,0 +1,171 @@
+package itsec.dh;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPublicKeySpec;
+
+import javax.crypto.KeyAgreement;
+
+/**
+ * The elliptic curves of RFC 7748 supported in curve mode, identified on the
+ * wire by their name in text format and by their TLS NamedGroup code (RFC
+ * 8446) in binary format. The key agreement is done by the XDH implementation
+ * of <code>java.security</code>.
+ *
+ * A public key is the u-coordinate of the point. KEY messages carry it as
+ * unsigned number like any other key, so in binary format the payload is the
+ * raw key of <code>keyLength</code> bytes in network byte order (leading zero
+ * bytes omitted).
+ *
+ * Looking up the JCA engines is far more expensive than a key agreement on
+ * X25519, so every thread keeps its own instances per curve.
+ */
+enum NamedCurve {
+
+	X25519(0x001D, 32, NamedParameterSpec.X25519),
+
+	X448(0x001E, 56, NamedParameterSpec.X448);
+
+	/**
+	 * TLS NamedGroup code.
+	 */
+	final int id;
+
+	/**
+	 * Length of the raw public key and of the shared secret in bytes.
+	 */
+	final int keyLength;
+
+	private final NamedParameterSpec spec;
+	private final byte[] wireName;
+
+	private final ThreadLocal<Engines> engines;
+
+	NamedCurve(int id, int keyLength, NamedParameterSpec spec) {
+		this.id = id;
+		this.keyLength = keyLength;
+		this.spec = spec;
+		this.wireName = spec.getName().getBytes(StandardCharsets.US_ASCII);
+		this.engines = ThreadLocal.withInitial(() -> new Engines(spec));
+	}
+
+	/**
+	 * Creates a new key pair: the secret scalar and the public key.
+	 */
+	KeyPair generateKeyPair() {
+		return engines.get().generator.generateKeyPair();
+	}
+
+	/**
+	 * @return The public key of a key pair of this curve as unsigned number.
+	 */
+	static BigInteger publicKey(KeyPair pair) {
+		return ((XECPublicKey) pair.getPublic()).getU();
+	}
+
+	/**
+	 * Derives the shared secret from our secret and their public key.
+	 *
+	 * @param secret
+	 *            Our secret of a key pair of this curve.
+	 * @param magnitude
+	 *            Their public key as big-endian unsigned magnitude.
+	 * @param length
+	 *            Length of the magnitude.
+	 * @return The shared secret of <code>keyLength</code> bytes.
+	 * @throws IllegalArgumentException
+	 *             If their key is too long, or of small order so that the
+	 *             shared secret would be zero.
+	 */
+	byte[] sharedSecret(PrivateKey secret, byte[] magnitude, int length) {
+		if (length == 0 || length > keyLength) {
+			throw new IllegalArgumentException("Expected their key to have at most " + keyLength + " bytes");
+		}
+		Engines e = engines.get();
+		try {
+			PublicKey theirKey = e.factory.generatePublic(new XECPublicKeySpec(spec,
+					new BigInteger(1, magnitude, 0, length)));
+			e.agreement.init(secret);
+			e.agreement.doPhase(theirKey, true);
+			return e.agreement.generateSecret();
+		} catch (InvalidKeyException ex) {
+			throw new IllegalArgumentException("Expected their key to be a point of " + this, ex);
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Key agreement on " + this + " failed.", ex);
+		}
+	}
+
+	/**
+	 * @return The curve with the TLS NamedGroup code, or null if it is not
+	 *         supported.
+	 */
+	static NamedCurve byId(int id) {
+		for (NamedCurve curve : values()) {
+			if (curve.id == id) {
+				return curve;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Looks up a curve by the name stored in <code>buf[from, to)</code>
+	 * without creating a String.
+	 *
+	 * @return The curve, or null if the name is not supported.
+	 */
+	static NamedCurve byName(ByteBuffer buf, int from, int to) {
+		for (NamedCurve curve : values()) {
+			byte[] name = curve.wireName;
+			if (to - from != name.length) {
+				continue;
+			}
+			int i = 0;
+			while (i < name.length && buf.get(from + i) == name[i]) {
+				i++;
+			}
+			if (i == name.length) {
+				return curve;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The ASCII name of the curve as sent in text format.
+	 */
+	byte[] wireName() {
+		return wireName;
+	}
+
+	/**
+	 * JCA engines of one thread for one curve.
+	 */
+	private static final class Engines {
+
+		final KeyPairGenerator generator;
+		final KeyAgreement agreement;
+		final KeyFactory factory;
+
+		Engines(NamedParameterSpec spec) {
+			try {
+				generator = KeyPairGenerator.getInstance("XDH");
+				generator.initialize(spec);
+				agreement = KeyAgreement.getInstance("XDH");
+				factory = KeyFactory.getInstance("XDH");
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("No XDH implementation for " + spec.getName() + " available.", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,798 @@
+package itsec.dh;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyPair;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Passive peer that serves many Diffie-Hellman key exchanges at once. In
+ * contrast to <code>Peer.waitForConnect()</code>, the listening socket stays
+ * open and every accepted connection is driven through the PROP/ACK/KEY
+ * protocol, in the wire format chosen by its active peer, by a non-blocking
+ * event loop, so no thread is bound to a single connection.
+ *
+ * Besides a and n, an active peer may propose a MODP group of RFC 3526
+ * (big-modulus mode), whose keys are computed with the Montgomery context of
+ * the group on the event loop, or an elliptic curve (curve mode), whose keys
+ * are agreed by XDH.
+ *
+ * A connection may carry pipelined exchanges whose messages are tagged with
+ * exchange IDs. These are answered in the order in which they complete, and
+ * the connection stays open until the peer closes it.
+ *
+ * A connection on which nothing is received or sent for the idle timeout
+ * (see <code>ConnectionPool.idleTimeout()</code>) is dropped, so stalled
+ * peers do not pile up. An idle timeout of 0 disables this.
+ *
+ * The server runs one acceptor thread and, by default, one event loop
+ * (<code>Reactor</code>) per available processor. The acceptor takes the
+ * connection requests off the listening channel and hands every connection
+ * to one loop by <code>Reactor.execute()</code>. The loop serves it until it
+ * is closed. A loop owns its connections alone, so it runs its exchanges
+ * without locks, and loops do not compete for the listening channel.
+ * Connections are assigned by <code>Assignment</code>.
+ *
+ * Every completed exchange is handed to the listener, if any, as
+ * <code>SharedKey</code>, so an embedding service can use the keys directly.
+ * <code>start()</code> runs the server in the background until
+ * <code>close()</code>.
+ */
+class NioPassiveServer {
+
+	/**
+	 * Choice of the event loop for an accepted connection.
+	 */
+	enum Assignment {
+
+		/**
+		 * The loops in turn. Spreads connections evenly if they all live
+		 * about equally long.
+		 */
+		ROUND_ROBIN,
+
+		/**
+		 * The loop with the fewest open connections, the next in turn among
+		 * equally loaded ones. Keeps the loops even if some peers hold their
+		 * connections open, e.g. pooled or pipelined ones.
+		 */
+		LEAST_LOADED
+	}
+
+	private final int port;
+	private final int loops;
+	private final Assignment assignment;
+
+	private final KeyPairPool keyPairs;
+	private final Consumer<SharedKey> listener;
+
+	private ServerSocketChannel serverChannel;
+	private EventLoop[] eventLoops;
+	private Thread acceptor;
+	private volatile boolean closed;
+
+	/**
+	 * Number of connections assigned so far, for the turn of the next loop.
+	 * Used by the acceptor only.
+	 */
+	private long assigned;
+
+	private final long idleNanos = ConnectionPool.idleTimeout() * 1000000L;
+
+	/**
+	 * Creates a server which uses one event loop per available processor, the
+	 * least loaded of which takes each connection, and a key pair pool with
+	 * the default watermarks.
+	 *
+	 * @param port
+	 *            Port to listen on for connection requests.
+	 */
+	NioPassiveServer(int port) {
+		this(port, Runtime.getRuntime().availableProcessors(), Assignment.LEAST_LOADED, new KeyPairPool(), null);
+	}
+
+	/**
+	 * @param port
+	 *            Port to listen on for connection requests.
+	 * @param loops
+	 *            Number of event loops (threads) serving the connections.
+	 * @param assignment
+	 *            Choice of the loop for each accepted connection.
+	 * @param keyPairs
+	 *            Pool to take our secrets and exchange keys from.
+	 * @param listener
+	 *            Callback for every completed exchange, or null. It is called
+	 *            on an event loop, so it must not block.
+	 */
+	NioPassiveServer(int port, int loops, Assignment assignment, KeyPairPool keyPairs,
+			Consumer<SharedKey> listener) {
+		if (loops < 1) {
+			throw new IllegalArgumentException("Expected at least one event loop.");
+		}
+		this.port = port;
+		this.loops = loops;
+		this.assignment = assignment;
+		this.keyPairs = keyPairs;
+		this.listener = listener;
+	}
+
+	/**
+	 * Binds the listening channel and runs the acceptor and the event loops.
+	 * This method does not return unless accepting failed or the server is
+	 * closed.
+	 *
+	 * @throws IOException
+	 *             If the listening channel cannot be set up.
+	 */
+	void run() throws IOException {
+		start();
+		try {
+			acceptor.join();
+		} catch (InterruptedException e) {
+			Log.DEFAULT.warn("Error waiting for the acceptor.");
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Binds the listening channel and starts the acceptor and the event loops.
+	 *
+	 * @throws IOException
+	 *             If the listening channel cannot be set up.
+	 */
+	synchronized void start() throws IOException {
+		if (serverChannel != null) {
+			throw new IllegalStateException("Server already started.");
+		}
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port), 1024);
+
+		Log.DEFAULT.info("Waiting at port " + port + " (" + loops + " event loops, " + assignment + ")");
+
+		eventLoops = new EventLoop[loops];
+		for (int i = 0; i < loops; i++) {
+			eventLoops[i] = new EventLoop(new Reactor("nio-loop-" + i));
+		}
+		acceptor = new Thread(this::accept, "nio-acceptor");
+		acceptor.start();
+	}
+
+	/**
+	 * Accepts connection requests in blocking mode and hands each connection
+	 * to an event loop, until the listening channel is closed.
+	 */
+	private void accept() {
+		try {
+			while (!closed) {
+				next().hand(serverChannel.accept());
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				Log.DEFAULT.warn("Accepting connections failed: " + e.getLocalizedMessage());
+				close();
+			}
+		}
+	}
+
+	/**
+	 * @return The loop to take the next connection, see
+	 *         <code>Assignment</code>.
+	 */
+	private EventLoop next() {
+		int turn = (int) (assigned++ % loops);
+		if (assignment == Assignment.ROUND_ROBIN) {
+			return eventLoops[turn];
+		}
+		EventLoop least = eventLoops[turn];
+		int load = least.connections.get();
+		for (int i = 1; i < loops && load > 0; i++) {
+			EventLoop loop = eventLoops[(turn + i) % loops];
+			int other = loop.connections.get();
+			if (other < load) {
+				least = loop;
+				load = other;
+			}
+		}
+		return least;
+	}
+
+	/**
+	 * Closes the listening channel, which stops the acceptor, and then stops
+	 * the event loops, which close their connections.
+	 */
+	synchronized void close() {
+		closed = true;
+		if (serverChannel == null) {
+			return;
+		}
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Error closing the listening channel: " + e.getLocalizedMessage());
+		}
+		if (Thread.currentThread() != acceptor) {
+			// no hand-over may reach a loop after it is closed
+			try {
+				acceptor.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (EventLoop loop : eventLoops) {
+			loop.reactor.close();
+		}
+	}
+
+	/**
+	 * The protocol handling on one <code>Reactor</code>, with the connections
+	 * handed to it. All methods but <code>hand()</code> run on the loop
+	 * thread.
+	 */
+	private class EventLoop {
+
+		private final Reactor reactor;
+
+		/**
+		 * Registered connections, for the idle sweep.
+		 */
+		private final Set<Connection> live = new HashSet<>();
+
+		/**
+		 * Number of connections handed to the loop and not yet closed, read by
+		 * the acceptor for <code>Assignment.LEAST_LOADED</code>.
+		 */
+		private final AtomicInteger connections = new AtomicInteger();
+
+		/**
+		 * Scratch space for encoding keys of MODP groups.
+		 */
+		private final byte[] magnitude = new byte[Message.MAX_LENGTH];
+
+		EventLoop(Reactor reactor) {
+			this.reactor = reactor;
+			if (idleNanos > 0) {
+				reactor.execute(() -> reactor.schedule(idleNanos / 2, this::sweep));
+			}
+		}
+
+		/**
+		 * Hands an accepted connection to the loop. Called by the acceptor.
+		 */
+		void hand(SocketChannel channel) {
+			connections.incrementAndGet();
+			Connection connection = new Connection(this, channel);
+			reactor.execute(() -> register(connection));
+		}
+
+		/**
+		 * Registers a connection handed over by the acceptor.
+		 */
+		private void register(Connection connection) {
+			SocketChannel channel = connection.channel;
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				connection.key = reactor.register(channel, SelectionKey.OP_READ, connection);
+				live.add(connection);
+				Metrics.DEFAULT.accept.recordSince(connection.lastActive);
+			} catch (IOException e) {
+				Log.DEFAULT.warn("Connection to peer lost: " + e.getLocalizedMessage());
+				connections.decrementAndGet();
+				try {
+					channel.close();
+				} catch (IOException closeError) {
+					Log.DEFAULT.warn("Error closing connection: " + closeError.getLocalizedMessage());
+				}
+			}
+		}
+
+		/**
+		 * Serves a ready connection, see <code>Reactor.Handler</code>.
+		 */
+		void ready(SelectionKey key) {
+			try {
+				if (key.isReadable()) {
+					read(key);
+				}
+				if (key.isValid() && key.isWritable()) {
+					write(key);
+				}
+			} catch (IOException e) {
+				Log.DEFAULT.warn("Connection to peer lost: " + e.getLocalizedMessage());
+				close(key);
+			}
+		}
+
+		/**
+		 * Forgets a connection which the reactor closed, e.g. on its shutdown.
+		 */
+		void closed(Connection connection) {
+			if (live.remove(connection)) {
+				connections.decrementAndGet();
+			}
+		}
+
+		/**
+		 * Drops the connections which have been idle for longer than the idle
+		 * timeout. Runs every half timeout on a timer of the reactor, so a
+		 * connection is dropped after at most 1.5 timeouts.
+		 */
+		private void sweep() {
+			long now = System.nanoTime();
+			for (Iterator<Connection> i = live.iterator(); i.hasNext();) {
+				Connection connection = i.next();
+				if (now - connection.lastActive > idleNanos) {
+					Metrics.DEFAULT.timeouts.increment();
+					Log.DEFAULT.warn("Dropping idle peer.");
+					i.remove();
+					connections.decrementAndGet();
+					Reactor.close(connection.key);
+				}
+			}
+			reactor.schedule(idleNanos / 2, this::sweep);
+		}
+
+		private void read(SelectionKey key) throws IOException {
+			SocketChannel channel = (SocketChannel) key.channel();
+			Connection connection = (Connection) key.attachment();
+			connection.lastActive = System.nanoTime();
+
+			if (channel.read(connection.in) < 0) {
+				close(key);
+				return;
+			}
+
+			process(key, connection);
+		}
+
+		/**
+		 * Handles the received messages for which the output buffer has room
+		 * and sends all answers at once. If the output buffer runs full, reading
+		 * is paused until the peer has taken the pending answers.
+		 */
+		private void process(SelectionKey key, Connection connection) throws IOException {
+			connection.out.compact();
+			while (connection.out.remaining() >= Connection.RESERVE && connection.nextMessage()) {
+				handle(key, connection, connection.message);
+				if (!key.isValid()) {
+					return;
+				}
+			}
+			connection.out.flip();
+
+			connection.paused = connection.out.capacity() - connection.out.remaining() < Connection.RESERVE;
+
+			if (!connection.paused && !connection.in.hasRemaining()) {
+				Log.DEFAULT.warn("Message exceeds " + Message.MAX_LENGTH + " bytes. Dropping peer.");
+				close(key);
+				return;
+			}
+
+			write(key);
+		}
+
+		/**
+		 * Advances the protocol state of an exchange by one received message
+		 * and queues the answers in the output buffer (in write mode).
+		 */
+		private void handle(SelectionKey key, Connection connection, Message message) throws IOException {
+			int id = message.id();
+			ByteBuffer out = connection.out;
+
+			if (id != Message.NO_ID) {
+				connection.pipelined = true;
+			} else if (connection.pipelined) {
+				Log.DEFAULT.warn("Expected exchange ID on pipelined connection.");
+				close(key);
+				return;
+			}
+
+			switch (message.type()) {
+			case Message.PROP:
+				if (!admit(key, connection, id)) {
+					return;
+				}
+
+				int a = message.a();
+				int n = message.n();
+
+				if (a <= 0 || n <= 0 || !ParameterValidator.DEFAULT.isValid(a, n)) {
+					connection.format.nak(out, id);
+					connection.done = id == Message.NO_ID;
+					Metrics.DEFAULT.naks.increment();
+					return;
+				}
+
+				Exchange exchange = new Exchange();
+				long pair = keyPairs.take(a, n);
+				exchange.x = KeyPairPool.secret(pair);
+				exchange.a = a;
+				exchange.n = n;
+				exchange.ourKey = KeyPairPool.key(pair);
+				connection.exchanges.put(id, exchange);
+
+				connection.format.ack(out, id);
+				connection.format.key(out, id, exchange.ourKey);
+				exchange.keySent();
+				break;
+
+			case Message.MODP:
+				if (!admit(key, connection, id)) {
+					return;
+				}
+
+				ModpGroup group = ModpGroup.byId(message.group());
+				if (group == null) {
+					connection.format.nak(out, id);
+					connection.done = id == Message.NO_ID;
+					Metrics.DEFAULT.naks.increment();
+					return;
+				}
+
+				exchange = new Exchange();
+				exchange.group = group;
+				MontgomeryContext context = group.context();
+
+				byte[] secret = new byte[group.exponentBits / 8];
+				RandomSource.DEFAULT.nextBytes(secret);
+				exchange.bigX = new long[group.exponentBits / 64];
+				context.decode(secret, secret.length, exchange.bigX);
+
+				long[] ourKey = context.newResidue();
+				context.powGenerator(exchange.bigX, ourKey);
+				connection.exchanges.put(id, exchange);
+
+				connection.format.ack(out, id);
+				connection.format.key(out, id, magnitude, MontgomeryContext.encode(ourKey, magnitude));
+				exchange.keySent();
+				break;
+
+			case Message.CURVE:
+				if (!admit(key, connection, id)) {
+					return;
+				}
+
+				NamedCurve curve = message.curve();
+				if (curve == null) {
+					connection.format.nak(out, id);
+					connection.done = id == Message.NO_ID;
+					Metrics.DEFAULT.naks.increment();
+					return;
+				}
+
+				exchange = new Exchange();
+				exchange.curve = curve;
+				exchange.curveKeys = curve.generateKeyPair();
+				connection.exchanges.put(id, exchange);
+
+				byte[] publicKey = NamedCurve.publicKey(exchange.curveKeys).toByteArray();
+				connection.format.ack(out, id);
+				connection.format.key(out, id, publicKey, publicKey.length);
+				exchange.keySent();
+				break;
+
+			case Message.KEY:
+				exchange = connection.exchanges.remove(id);
+				if (exchange == null) {
+					Log.DEFAULT.warn("Error on data exchange.");
+					close(key);
+					return;
+				}
+
+				if (exchange.group != null) {
+					completeBig(key, connection, exchange, message);
+					return;
+				}
+				if (exchange.curve != null) {
+					completeCurve(key, connection, exchange, message);
+					return;
+				}
+
+				long theirKey = message.key();
+				if (theirKey <= 0) {
+					Log.DEFAULT.warn("Expected their key to be > 0");
+					if (id == Message.NO_ID) {
+						close(key);
+					}
+					// a pipelined connection only loses this exchange
+					return;
+				}
+
+				long sharedKey = Peer.expmod(theirKey, exchange.x, exchange.n);
+				exchange.completed();
+				if (listener != null) {
+					emit(SharedKey.of(((SocketChannel) key.channel()).getRemoteAddress(), id, exchange.a,
+							exchange.n, sharedKey));
+				}
+				if (Log.DEFAULT.enabled(Log.Level.INFO)) {
+					Log.DEFAULT.info("Exchange " + (id == Message.NO_ID ? "" : "#" + id + " ") + "with "
+							+ ((SocketChannel) key.channel()).getRemoteAddress() + " completed (y1 = "
+							+ exchange.ourKey + ", y2 = " + theirKey + ", k = " + sharedKey + ")");
+				}
+
+				connection.done = id == Message.NO_ID;
+				break;
+
+			default:
+				if (message.type() == Message.UNKNOWN) {
+					Metrics.DEFAULT.parseErrors.increment();
+				}
+				Log.DEFAULT.warn("Error on data exchange.");
+				close(key);
+			}
+		}
+
+		/**
+		 * Hands a completed exchange to the listener. A failing listener must
+		 * not stop the event loop.
+		 */
+		private void emit(SharedKey sharedKey) {
+			try {
+				listener.accept(sharedKey);
+			} catch (RuntimeException e) {
+				Log.DEFAULT.warn("Error in exchange listener: " + e);
+			}
+		}
+
+		/**
+		 * Checks whether another exchange may be proposed on the connection,
+		 * and drops the peer if not.
+		 */
+		private boolean admit(SelectionKey key, Connection connection, int id) {
+			if (connection.exchanges.containsKey(id) || connection.done) {
+				Log.DEFAULT.warn("Exchange " + id + " proposed twice.");
+				close(key);
+				return false;
+			}
+			if (connection.exchanges.size() >= Connection.MAX_EXCHANGES) {
+				Log.DEFAULT.warn("Too many exchanges in flight. Dropping peer.");
+				close(key);
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Completes an exchange in a MODP group with their key.
+		 */
+		private void completeBig(SelectionKey key, Connection connection, Exchange exchange, Message message)
+				throws IOException {
+			int id = message.id();
+			MontgomeryContext context = exchange.group.context();
+
+			long[] theirKey = context.newResidue();
+			if (message.keyLength() == 0 || !context.decode(message.keyMagnitude(), message.keyLength(), theirKey)
+					|| !context.isValidKey(theirKey)) {
+				Log.DEFAULT.warn("Expected their key to be > 1 and < p - 1");
+				if (id == Message.NO_ID) {
+					close(key);
+				}
+				return;
+			}
+
+			long[] sharedKey = context.newResidue();
+			context.pow(theirKey, exchange.bigX, sharedKey);
+			exchange.completed();
+			if (listener != null) {
+				emit(SharedKey.of(((SocketChannel) key.channel()).getRemoteAddress(), id, exchange.group,
+						MontgomeryContext.toBigInteger(sharedKey)));
+			}
+			if (Log.DEFAULT.enabled(Log.Level.INFO)) {
+				Log.DEFAULT.info("Exchange " + (id == Message.NO_ID ? "" : "#" + id + " ") + "with "
+						+ ((SocketChannel) key.channel()).getRemoteAddress() + " completed (" + exchange.group
+						+ ", k = " + MontgomeryContext.toBigInteger(sharedKey).toString(16) + ")");
+			}
+
+			connection.done = id == Message.NO_ID;
+		}
+
+		/**
+		 * Completes an exchange on an elliptic curve with their key.
+		 */
+		private void completeCurve(SelectionKey key, Connection connection, Exchange exchange, Message message)
+				throws IOException {
+			int id = message.id();
+
+			byte[] sharedKey;
+			try {
+				sharedKey = exchange.curve.sharedSecret(exchange.curveKeys.getPrivate(), message.keyMagnitude(),
+						message.keyLength());
+				exchange.completed();
+			} catch (IllegalArgumentException e) {
+				Log.DEFAULT.warn(e.getMessage());
+				if (id == Message.NO_ID) {
+					close(key);
+				}
+				return;
+			}
+
+			if (listener != null) {
+				emit(SharedKey.of(((SocketChannel) key.channel()).getRemoteAddress(), id, exchange.curve,
+						sharedKey));
+			}
+			if (Log.DEFAULT.enabled(Log.Level.INFO)) {
+				Log.DEFAULT.info("Exchange " + (id == Message.NO_ID ? "" : "#" + id + " ") + "with "
+						+ ((SocketChannel) key.channel()).getRemoteAddress() + " completed (" + exchange.curve
+						+ ", k = " + HexFormat.of().formatHex(sharedKey) + ")");
+			}
+
+			connection.done = id == Message.NO_ID;
+		}
+
+		private void write(SelectionKey key) throws IOException {
+			SocketChannel channel = (SocketChannel) key.channel();
+			Connection connection = (Connection) key.attachment();
+
+			if (channel.write(connection.out) > 0) {
+				connection.lastActive = System.nanoTime();
+			}
+
+			if (connection.out.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if (connection.done) {
+				close(key);
+			} else if (connection.paused) {
+				// the peer took all answers, so carry on with the buffered messages
+				process(key, connection);
+			} else {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		private void close(SelectionKey key) {
+			Reactor.close(key);
+			closed((Connection) key.attachment());
+		}
+	}
+
+	/**
+	 * State of one connection handled by an event loop. A connection carries
+	 * either a single exchange with untagged messages, or any number of
+	 * pipelined exchanges tagged with their IDs.
+	 */
+	private static class Connection implements Reactor.Handler {
+
+		/**
+		 * Room required in the output buffer to handle another message.
+		 */
+		static final int RESERVE = 2 * Message.MAX_LENGTH;
+
+		/**
+		 * Maximum number of pipelined exchanges in flight per connection.
+		 */
+		static final int MAX_EXCHANGES = 1024;
+
+		final EventLoop loop;
+		final SocketChannel channel;
+		SelectionKey key;
+
+		final ByteBuffer in = ByteBuffer.allocate(Message.MAX_LENGTH);
+		final ByteBuffer out = ByteBuffer.allocate(8 * Message.MAX_LENGTH).flip();
+		final Message message = new Message();
+
+		/**
+		 * Exchanges in flight, by ID.
+		 */
+		final Map<Integer, Exchange> exchanges = new HashMap<>();
+
+		/**
+		 * Wire format chosen by the active peer, detected from the first
+		 * received byte.
+		 */
+		WireFormat format;
+
+		boolean pipelined;
+		boolean paused;
+
+		/**
+		 * <code>System.nanoTime()</code> of the last read or write, see
+		 * <code>EventLoop.sweep()</code>, and initially of the accept.
+		 */
+		long lastActive = System.nanoTime();
+
+		/**
+		 * Whether the single exchange of a connection without IDs has ended,
+		 * so the connection is closed once the output is sent.
+		 */
+		boolean done;
+
+		Connection(EventLoop loop, SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+		@Override
+		public void ready(SelectionKey key) {
+			loop.ready(key);
+		}
+
+		@Override
+		public void failed(IOException e) {
+			loop.closed(this);
+		}
+
+		/**
+		 * Parses the next complete message of the input buffer into
+		 * <code>message</code> and removes it from the buffer.
+		 *
+		 * @return Whether a complete message has been received.
+		 */
+		boolean nextMessage() {
+			if (in.position() == 0) {
+				return false;
+			}
+			if (format == null) {
+				format = WireFormat.detect(in.get(0));
+			}
+
+			int end = format.frame(in, 0, in.position());
+			if (end < 0) {
+				return false;
+			}
+			format.parse(message, in, 0, end);
+
+			in.flip();
+			in.position(end);
+			in.compact();
+			return true;
+		}
+	}
+
+	/**
+	 * State of one key exchange after its proposal was acknowledged.
+	 */
+	private static class Exchange {
+
+		/**
+		 * <code>System.nanoTime()</code> of receiving the proposal and of
+		 * queueing our key.
+		 */
+		final long started = System.nanoTime();
+		long keySent;
+
+		int a;
+		int n;
+		int x;
+		long ourKey;
+
+		/**
+		 * MODP group and secret in big-modulus mode, otherwise null.
+		 */
+		ModpGroup group;
+		long[] bigX;
+
+		/**
+		 * Curve and our key pair in curve mode, otherwise null.
+		 */
+		NamedCurve curve;
+		KeyPair curveKeys;
+
+		void keySent() {
+			keySent = System.nanoTime();
+			Metrics.DEFAULT.keyGeneration.record(keySent - started);
+		}
+
+		/**
+		 * Records the exchange once the shared key is derived.
+		 */
+		void completed() {
+			long now = System.nanoTime();
+			Metrics.DEFAULT.keyExchange.record(now - keySent);
+			Metrics.DEFAULT.handshake.record(now - started);
+			Metrics.DEFAULT.handshakes.increment();
+		}
+	}
+}
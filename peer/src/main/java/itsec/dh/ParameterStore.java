@@ -0,0 +1,181 @@
+package itsec.dh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+
+/**
+ * Persistent store of validated protocol-size groups (a, n), so that short
+ * lived active peers pick a group instead of generating one.
+ *
+ * The store is a memory-mapped file which is used in place, without parsing:
+ *
+ * <pre>
+ * offset  0: int magic "DHPS"
+ * offset  4: int version
+ * offset  8: int number of groups
+ * offset 12: int cursor, index of the group to hand out next
+ * offset 16: groups as pairs of int a, int n
+ * </pre>
+ *
+ * All ints are big-endian. The cursor is part of the file, so consecutive
+ * processes hand out the groups round-robin as well. Concurrent processes
+ * may occasionally pick the same group, which does no harm. Appending a group
+ * takes a lock on the file, so processes which share the store do not
+ * overwrite each other's groups.
+ *
+ * The file may have been edited or truncated, so every group is validated
+ * again before it is handed out, and invalid ones are skipped. Only one
+ * store per file may be open in a JVM.
+ */
+final class ParameterStore implements Closeable {
+
+	/**
+	 * Location of the store used by the peer.
+	 */
+	static final Path DEFAULT_PATH = Path.of("dh-groups.bin");
+
+	private static final int MAGIC = 0x44485053;
+	private static final int VERSION = 1;
+
+	private static final int COUNT = 8;
+	private static final int CURSOR = 12;
+	private static final int HEADER = 16;
+	private static final int RECORD = 8;
+
+	/**
+	 * Number of Miller-Rabin rounds when validating an added group.
+	 */
+	private static final int ROUNDS = 40;
+
+	private final FileChannel channel;
+	private MappedByteBuffer map;
+
+	private ParameterStore(FileChannel channel) throws IOException {
+		this.channel = channel;
+
+		try (FileLock lock = channel.lock()) {
+			if (channel.size() == 0) {
+				map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+				map.putInt(0, MAGIC);
+				map.putInt(4, VERSION);
+			} else {
+				map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+				if (map.capacity() < HEADER || map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+						|| map.getInt(COUNT) < 0 || map.capacity() < HEADER + (long) RECORD * map.getInt(COUNT)) {
+					throw new IOException("Not a parameter store of version " + VERSION + ".");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens the store, creating an empty one if the file does not exist.
+	 *
+	 * @param path
+	 *            Location of the store.
+	 * @throws IOException
+	 *             If the file cannot be mapped or is not a store.
+	 */
+	static ParameterStore open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			return new ParameterStore(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The number of groups in the store.
+	 */
+	synchronized int size() {
+		return map.getInt(COUNT);
+	}
+
+	/**
+	 * Hands out the valid groups round-robin.
+	 *
+	 * @return The next group, or null if the store has no valid group.
+	 * @throws IOException
+	 *             If groups appended by another process cannot be mapped.
+	 */
+	synchronized GroupParameters next() throws IOException {
+		int count = map.getInt(COUNT);
+		if (map.capacity() < HEADER + (long) RECORD * count) {
+			// appended by another process since we mapped the file
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			count = (int) Math.min(count, (map.capacity() - HEADER) / RECORD);
+		}
+		for (int i = 0; i < count; i++) {
+			int cursor = Math.floorMod(map.getInt(CURSOR), count);
+			map.putInt(CURSOR, (cursor + 1) % count);
+
+			int offset = HEADER + RECORD * cursor;
+			int a = map.getInt(offset);
+			int n = map.getInt(offset + 4);
+			if (isValid(a, n)) {
+				return new GroupParameters(BigInteger.valueOf(n), BigInteger.valueOf(a));
+			}
+			Log.DEFAULT.warn("Skipping invalid group in parameter store (a = " + a + ", n = " + n + ").");
+		}
+		return null;
+	}
+
+	/**
+	 * Checks a stored group: n is a safe prime of 8 to 31 bits and a a
+	 * primitive root modulo n. The tests are deterministic for these sizes.
+	 */
+	private static boolean isValid(int a, int n) {
+		return n >= 1 << 7 && a > 1 && a < n && ParameterValidator.isPrime(n)
+				&& ParameterValidator.isPrime(n >>> 1) && ParameterValidator.isPrimitiveRoot(a, n);
+	}
+
+	/**
+	 * Validates a group and appends it to the store.
+	 *
+	 * @param group
+	 *            Group of a safe prime n of 8 to 31 bits and a primitive root
+	 *            a.
+	 * @throws IllegalArgumentException
+	 *             If the group is not valid.
+	 * @throws IOException
+	 *             If the file cannot be extended.
+	 */
+	synchronized void add(GroupParameters group) throws IOException {
+		BigInteger p = group.p();
+		BigInteger q = p.shiftRight(1);
+		if (p.bitLength() < 8 || p.bitLength() > 31) {
+			throw new IllegalArgumentException("Expected n to have 8 to 31 bits.");
+		}
+		SecureRandom rng = new SecureRandom();
+		if (!SafePrimeGenerator.isProbablePrime(q, ROUNDS, rng) || !SafePrimeGenerator.isProbablePrime(p, ROUNDS, rng)
+				|| !SafePrimeGenerator.isGenerator(group.g(), p, q)) {
+			throw new IllegalArgumentException("Expected a safe prime n and a primitive root a: " + group);
+		}
+
+		// another process may append at the same time
+		try (FileLock lock = channel.lock()) {
+			int count = map.getInt(COUNT);
+			int offset = HEADER + RECORD * count;
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, offset + RECORD);
+			map.putInt(offset, group.a());
+			map.putInt(offset + 4, group.n());
+			map.putInt(COUNT, count + 1);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		map.force();
+		channel.close();
+	}
+}
@@ -0,0 +1,311 @@
+package itsec.dh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Validation of proposed parameters on the passive side: n has to be prime
+ * and a a primitive root modulo n. Otherwise a only generates a subgroup (or
+ * n is composite) and the exchange yields weak keys.
+ *
+ * Primality is decided by Miller-Rabin with the first twelve primes as
+ * bases, which is deterministic for all moduli below 2^64. a is a primitive
+ * root iff a^((n-1)/f) != 1 mod n for every prime factor f of n - 1; n - 1 is
+ * factored by trial division and Pollard-Brent rho. All arithmetic is done in
+ * Montgomery form with R = 2^64, so moduli up to 2^63 are supported.
+ *
+ * Results are cached per (a, n), so repeated proposals cost a single lookup.
+ * Hits and misses of the cache are counted in <code>Metrics.DEFAULT</code>
+ * as <code>validation_hits_total</code> and
+ * <code>validation_misses_total</code>.
+ */
+final class ParameterValidator {
+
+	/**
+	 * Validator shared by all sessions of this JVM.
+	 */
+	static final ParameterValidator DEFAULT = new ParameterValidator(1 << 16);
+
+	private static final long[] BASES = { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37 };
+
+	/**
+	 * Bound of the trial division before Pollard-Brent rho is used.
+	 */
+	private static final int TRIAL_LIMIT = 1 << 10;
+
+	private final ConcurrentMap<Long, Boolean> results = new ConcurrentHashMap<>();
+	private final int capacity;
+
+	private final LongAdder hits = Metrics.DEFAULT.counter("validation_hits_total",
+			"Proposals validated from the cache.");
+	private final LongAdder misses = Metrics.DEFAULT.counter("validation_misses_total",
+			"Proposals validated by computation.");
+
+	/**
+	 * @param capacity
+	 *            Maximum number of cached results. Once reached, further
+	 *            proposals are validated without caching.
+	 */
+	ParameterValidator(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Validates a proposal.
+	 *
+	 * @return Whether n is prime and a is a primitive root modulo n.
+	 */
+	boolean isValid(int a, int n) {
+		Long key = ((long) a << 32) | (n & 0xFFFFFFFFL);
+
+		Boolean valid = results.get(key);
+		if (valid != null) {
+			hits.increment();
+			return valid;
+		}
+		misses.increment();
+
+		boolean result = isPrime(n) && isPrimitiveRoot(a, n);
+		if (results.size() < capacity) {
+			results.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Deterministic Miller-Rabin test.
+	 *
+	 * @param n
+	 *            Number to test.
+	 * @return Whether n is prime.
+	 */
+	static boolean isPrime(long n) {
+		if (n < 2) {
+			return false;
+		}
+		for (long base : BASES) {
+			if (n % base == 0) {
+				return n == base;
+			}
+		}
+
+		Montgomery m = new Montgomery(n);
+		long minusOne = n - m.one;
+		int s = Long.numberOfTrailingZeros(n - 1);
+		long d = (n - 1) >>> s;
+
+		for (long base : BASES) {
+			long x = m.pow(m.toMontgomery(base), d);
+			if (x == m.one || x == minusOne) {
+				continue;
+			}
+			int i = 1;
+			for (; i < s; i++) {
+				x = m.multiply(x, x);
+				if (x == minusOne) {
+					break;
+				}
+			}
+			if (i == s) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether a generates the multiplicative group modulo the prime n.
+	 *
+	 * @param a
+	 *            Proposed generator.
+	 * @param n
+	 *            Prime modulus below 2^63.
+	 */
+	static boolean isPrimitiveRoot(long a, long n) {
+		if (a <= 0 || a >= n) {
+			return false;
+		}
+		if (n == 2) {
+			return true;
+		}
+
+		Montgomery m = new Montgomery(n);
+		long base = m.toMontgomery(a);
+		for (long f : primeFactors(n - 1)) {
+			if (m.pow(base, (n - 1) / f) == m.one) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The distinct prime factors of a positive number.
+	 */
+	static List<Long> primeFactors(long value) {
+		List<Long> factors = new ArrayList<>();
+
+		for (long f = 2; f < TRIAL_LIMIT && f * f <= value; f += f == 2 ? 1 : 2) {
+			if (value % f == 0) {
+				factors.add(f);
+				do {
+					value /= f;
+				} while (value % f == 0);
+			}
+		}
+		if (value > 1) {
+			factorLarge(value, factors);
+		}
+		return factors;
+	}
+
+	/**
+	 * Adds the prime factors of a number without factors below
+	 * <code>TRIAL_LIMIT</code>.
+	 */
+	private static void factorLarge(long value, List<Long> factors) {
+		if (value == 1) {
+			return;
+		}
+		if (isPrime(value)) {
+			if (!factors.contains(value)) {
+				factors.add(value);
+			}
+			return;
+		}
+		long d = rho(value);
+		factorLarge(d, factors);
+		factorLarge(value / d, factors);
+	}
+
+	/**
+	 * Pollard-Brent rho: finds a proper factor of an odd composite number.
+	 */
+	private static long rho(long n) {
+		Montgomery m = new Montgomery(n);
+
+		for (long c = 1;; c++) {
+			long x = 0;
+			long y = 2;
+			long ys = y;
+			long q = m.one;
+			long g = 1;
+
+			for (int r = 1; g == 1; r <<= 1) {
+				x = y;
+				for (int i = 0; i < r; i++) {
+					y = m.step(y, c);
+				}
+				for (int k = 0; k < r && g == 1; k += 128) {
+					ys = y;
+					for (int i = 0; i < Math.min(128, r - k); i++) {
+						y = m.step(y, c);
+						q = m.multiply(q, Math.abs(x - y));
+					}
+					g = gcd(q, n);
+				}
+			}
+
+			if (g == n) {
+				// the batched product hit a multiple of n, repeat the last steps one by one
+				do {
+					ys = m.step(ys, c);
+					g = gcd(Math.abs(x - ys), n);
+				} while (g == 1);
+			}
+			if (g != n) {
+				return g;
+			}
+		}
+	}
+
+	private static long gcd(long a, long b) {
+		while (b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	/**
+	 * Montgomery arithmetic modulo an odd n below 2^63 with R = 2^64.
+	 */
+	private static final class Montgomery {
+
+		final long n;
+		final long negInv;
+
+		/**
+		 * 1 in Montgomery form, i.e. R mod n.
+		 */
+		final long one;
+
+		/**
+		 * R^2 mod n, converts into Montgomery form.
+		 */
+		final long r2;
+
+		Montgomery(long n) {
+			this.n = n;
+
+			// Newton iteration for n^-1 mod 2^64, see ModExp.montgomery()
+			long inv = n;
+			for (int i = 0; i < 5; i++) {
+				inv *= 2 - n * inv;
+			}
+			this.negInv = -inv;
+
+			this.one = Long.remainderUnsigned(-n, n);
+
+			long r = one;
+			for (int i = 0; i < 64; i++) {
+				r <<= 1;
+				if (Long.compareUnsigned(r, n) >= 0) {
+					r -= n;
+				}
+			}
+			this.r2 = r;
+		}
+
+		long toMontgomery(long a) {
+			return multiply(a % n, r2);
+		}
+
+		/**
+		 * a * b * R^-1 mod n for a, b &lt; n. The product a * b + m * n is
+		 * below 2Rn, so the quotient fits into an unsigned long.
+		 */
+		long multiply(long a, long b) {
+			long lo = a * b;
+			long hi = Math.unsignedMultiplyHigh(a, b);
+			long m = lo * negInv;
+			// lo + low half of m * n is 0 mod R, with a carry unless lo is 0
+			long t = hi + Math.unsignedMultiplyHigh(m, n) + (lo != 0 ? 1 : 0);
+			return Long.compareUnsigned(t, n) >= 0 ? t - n : t;
+		}
+
+		long pow(long base, long exp) {
+			long result = one;
+			while (exp > 0) {
+				if ((exp & 1) == 1) {
+					result = multiply(result, base);
+				}
+				base = multiply(base, base);
+				exp >>>= 1;
+			}
+			return result;
+		}
+
+		/**
+		 * Step y^2 + c of the rho sequence.
+		 */
+		long step(long y, long c) {
+			long t = multiply(y, y) + c;
+			return Long.compareUnsigned(t, n) >= 0 ? t - n : t;
+		}
+	}
+}
@@ -0,0 +1,591 @@
+package itsec.dh;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Class that encapsulates all necessary means for implementing a simple
+ * (blocking) peer client for realizing the Diffie-Hellman key exchange
+ * protocol.
+ *
+ * @author Christian Grimme, 2018
+ */
+public class Peer {
+
+	/**
+	 * Size in bits of the safe primes proposed as n. a and n are sent as int,
+	 * so n has at most 31 bits.
+	 */
+	static final int PROTOCOL_BITS = 31;
+
+	/**
+	 * Method which waits for a connection request from a peer. This method
+	 * should be used in passive mode, to keep on waiting. Therefore a
+	 * SocketServer is set up to listen on the given port for a specified period
+	 * of time.
+	 *
+	 * @param port
+	 *            Post to listen on for connection requests.
+	 * @param timeout
+	 *            Maximum waiting time (milliseconds)
+	 * @return The session for the accepted connection, or <code>null</code> if
+	 *         no connection was accepted.
+	 */
+	private static HandshakeSession waitForConnect(int port, int timeout) {
+		HandshakeSession session = null;
+		ServerSocket ssocket;
+		try {
+
+			ssocket = new ServerSocket();
+
+			Log.DEFAULT.info("Starting up.");
+
+			ssocket.bind(new InetSocketAddress(port));
+
+			Log.DEFAULT.info("Waiting at port " + port);
+
+			try {
+
+				ssocket.setSoTimeout(timeout);
+				Socket socket = ssocket.accept();
+				long accepted = System.nanoTime();
+				socket.setSoTimeout(ConnectionPool.idleTimeout());
+
+				Log.DEFAULT.info("Socket connection accepted.");
+
+				session = setup(socket);
+				Metrics.DEFAULT.accept.recordSince(accepted);
+
+			} catch (SocketTimeoutException ste) {
+				Metrics.DEFAULT.timeouts.increment();
+				Log.DEFAULT.warn("A Timeout occured. No connection possible.");
+			} catch (IOException | SecurityException | IllegalArgumentException e) {
+				Log.DEFAULT.warn("Connection could not be accepted: " + e.getLocalizedMessage());
+			} finally {
+				ssocket.close();
+			}
+
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Listening socket could not be set up: " + e.getLocalizedMessage());
+		}
+		return session;
+	}
+
+	/**
+	 * Method to start a connection. This method complements the
+	 * <code>waitForConnect</code> method. It should be used to actively
+	 * initialize a socket connection. Connecting and waiting for messages time
+	 * out as configured for <code>ConnectionPool</code>.
+	 *
+	 * @param ip
+	 *            Contact IP address.
+	 * @param port
+	 *            Contact port.
+	 * @return The session for the established connection, or <code>null</code>
+	 *         if the peer could not be reached.
+	 */
+	private static HandshakeSession connect(String ip, int port) {
+		try {
+			Socket socket = ConnectionPool.connect(new InetSocketAddress(ip, port), ConnectionPool.connectTimeout())
+					.socket();
+			socket.setSoTimeout(ConnectionPool.readTimeout());
+			Log.DEFAULT.info("Socket connection successful established.");
+
+			return setup(socket);
+
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Connection to peer impossible: " + e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Method use to set up a session for an active socket. Used internally by
+	 * waitForConnect() and connect().
+	 */
+	private static HandshakeSession setup(Socket socket) {
+		try {
+			return new HandshakeSession(socket);
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Reader or Writer could not be initialized.");
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 * Utility method for tokenizing a given string into a String array
+	 * respecting a given delimiter.
+	 *
+	 * @param s
+	 *            The String that shall be tokenized.
+	 * @param delim
+	 *            The delimiter separating the tokens.
+	 * @return Array of tokens
+	 */
+	static String[] tokenize(String s, String delim) {
+		StringTokenizer st = new StringTokenizer(s, delim);
+		String[] tokens = new String[st.countTokens()];
+		int i = 0;
+		while (st.hasMoreTokens()) {
+			tokens[i] = st.nextToken();
+			i++;
+		}
+		return tokens;
+	}
+
+	static String operation(String s) {
+		String[] tokens = tokenize(s, " ");
+		return tokens[0];
+	}
+
+	/**
+	 * Modular exponentiation a^exp mod mod, see <code>ModExp</code>.
+	 */
+	static long expmod(long a, long exp, int mod) {
+		return ModExp.pow(a, exp, mod);
+	}
+
+	/**
+	 * Executes the key exchange protocol in passive mode (i.e., waiting for an
+	 * active peer to contact this one)
+	 *
+	 * @param port
+	 *            Port to listen for incoming messages.
+	 */
+	private static void passiveMode(int port) {
+		traceByDefault();
+
+		HandshakeSession session = waitForConnect(port, 200000);
+		if (session == null) {
+			return;
+		}
+
+		try (session) {
+
+			/*
+			 * Wait for a PROP (propose) command comprising n and a values
+			 */
+
+			session.awaitProposal();
+
+			exchange(session);
+
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Error receiving data.");
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			Log.DEFAULT.warn("Error on data exchange.");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Executes the peer in active mode (i.e., this peer starts the DH key
+	 * exchange with a PROP message, sending a and n.
+	 *
+	 * @param ip
+	 *            The remote IP.
+	 * @param port
+	 *            The port to send to.
+	 * @param format
+	 *            Wire format to use for the exchange.
+	 * @param modp
+	 *            MODP group to propose instead of a and n, or null.
+	 * @param curve
+	 *            Elliptic curve to propose instead of a and n, or null.
+	 */
+	private static void activeMode(String ip, int port, WireFormat format, ModpGroup modp, NamedCurve curve) {
+		traceByDefault();
+
+		// N = Safe prime of PROTOCOL_BITS bits, from the parameter store
+		// A = Primitive root of N
+		// X = Prime number between 1 and N and GCD(X, N) = 1
+
+		GroupParameters group = curve != null ? null : modp == null ? group() : modp.parameters();
+
+		HandshakeSession session = connect(ip, port);
+		if (session == null) {
+			return;
+		}
+
+		try (session) {
+
+			/*
+			 * Send PROP (propose) command comprising n and a values
+			 */
+
+			session.format(format);
+			if (curve != null) {
+				session.proposeCurve(curve);
+				Log.DEFAULT.info("Proposal sent to passive peer (" + curve + ")");
+			} else if (modp == null) {
+				session.propose(group.a(), group.n());
+				Log.DEFAULT.info("Proposal sent to passive peer (a = " + group.a() + ", n = " + group.n() + ")");
+			} else {
+				session.proposeGroup(modp);
+				Log.DEFAULT.info("Proposal sent to passive peer (" + modp + ", RFC 3526 group " + modp.id + ")");
+			}
+
+			/*
+			 * Exchange key
+			 */
+
+			if (session.awaitAck()) {
+				Log.DEFAULT.info("The proposal of a and n was acknowledged.");
+
+				exchange(session);
+
+			} else {
+				Log.DEFAULT.info("The proposal was not acknowledged.");
+			}
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Error on data exchange: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Executes a number of key exchanges with the passive peer, pipelined over
+	 * one connection (see <code>PipelinedClient</code>).
+	 *
+	 * @param ip
+	 *            The remote IP.
+	 * @param port
+	 *            The port to send to.
+	 * @param format
+	 *            Wire format to use for the exchanges.
+	 * @param count
+	 *            Number of exchanges.
+	 */
+	private static void pipelinedMode(String ip, int port, WireFormat format, int count) {
+		Socket socket;
+		try {
+			socket = ConnectionPool.connect(new InetSocketAddress(ip, port), ConnectionPool.connectTimeout()).socket();
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Connection to peer impossible: " + e.getLocalizedMessage());
+			return;
+		}
+
+		try (PipelinedClient client = new PipelinedClient(socket, format, group())) {
+			long start = System.nanoTime();
+			long[] sharedKeys = client.run(count, 64);
+			long millis = (System.nanoTime() - start) / 1000000;
+
+			int failed = 0;
+			for (long sharedKey : sharedKeys) {
+				if (sharedKey < 0) {
+					failed++;
+				}
+			}
+			Log.DEFAULT.info(count + " exchanges over one connection in " + millis + " ms (" + failed
+					+ " failed)");
+
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Error receiving data: " + e.getLocalizedMessage());
+		} catch (IllegalArgumentException e) {
+			Log.DEFAULT.warn("Error on data exchange: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Stress-tests the passive peer with concurrent active peers at a target
+	 * rate (see <code>LoadGenerator</code>), either with a new connection per
+	 * exchange or over warm connections of a <code>ConnectionPool</code>.
+	 *
+	 * @param ip
+	 *            The remote IP.
+	 * @param port
+	 *            The port to send to.
+	 * @param format
+	 *            Wire format to use for the exchanges.
+	 * @param peers
+	 *            Number of concurrent active peers.
+	 * @param rate
+	 *            Target rate in exchanges per second.
+	 * @param seconds
+	 *            Duration of the load.
+	 * @param pooled
+	 *            Whether to reuse the connections.
+	 */
+	private static void loadMode(String ip, int port, WireFormat format, int peers, double rate, int seconds,
+			boolean pooled) {
+		InetSocketAddress address = new InetSocketAddress(ip, port);
+		try (ConnectionPool pool = pooled
+				? new ConnectionPool(ConnectionPool.connectTimeout(), ConnectionPool.readTimeout(), peers,
+						ConnectionPool.idleTimeout() / 2)
+				: null) {
+			if (pool != null) {
+				pool.warm(address, peers);
+			}
+			new LoadGenerator(address, format, group(), peers, rate, pool).run(seconds);
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Connection to peer impossible: " + e.getLocalizedMessage());
+		} catch (InterruptedException e) {
+			Log.DEFAULT.warn("Error waiting for the active peers.");
+		}
+	}
+
+	/**
+	 * Runs a number of exchanges with the passive peer at once through the
+	 * asynchronous API (see <code>AsyncPeer</code>), each on a connection of
+	 * its own, and waits for all shared keys.
+	 *
+	 * @param ip
+	 *            The remote IP.
+	 * @param port
+	 *            The port to send to.
+	 * @param format
+	 *            Wire format to use for the exchanges.
+	 * @param count
+	 *            Number of exchanges.
+	 */
+	private static void asyncMode(String ip, int port, WireFormat format, int count) {
+		InetSocketAddress address = new InetSocketAddress(ip, port);
+		GroupParameters group = group();
+
+		try (AsyncPeer peer = new AsyncPeer(format)) {
+			long start = System.nanoTime();
+			List<CompletableFuture<SharedKey>> sharedKeys = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				sharedKeys.add(peer.initiate(address, group));
+			}
+
+			int failed = 0;
+			Throwable firstError = null;
+			for (CompletableFuture<SharedKey> sharedKey : sharedKeys) {
+				try {
+					sharedKey.join();
+				} catch (CompletionException e) {
+					failed++;
+					firstError = firstError == null ? e.getCause() : firstError;
+				}
+			}
+			long millis = (System.nanoTime() - start) / 1000000;
+
+			Log.DEFAULT.info(count + " concurrent exchanges in " + millis + " ms (" + failed + " failed)");
+			if (firstError != null) {
+				Log.DEFAULT.warn("First error: " + firstError);
+			}
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Event loop could not be started: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Second half of the protocol, common to both modes: creates the secret x,
+	 * exchanges the keys and prints the resulting shared key.
+	 *
+	 * @param session
+	 *            Session with negotiated a and n.
+	 */
+	private static void exchange(HandshakeSession session) throws IOException {
+
+		/*
+			Now, create a secret x1
+		*/
+
+		session.generateKey(RandomSource.DEFAULT);
+
+		if (session.curve() != null) {
+			Log.DEFAULT.info("My exchange key Y is: " + session.curveOurKey());
+		} else if (session.group() != null) {
+			Log.DEFAULT.info("My X is: " + session.bigX());
+			Log.DEFAULT.info("My exchange key Y is: " + session.bigOurKey());
+		} else {
+			Log.DEFAULT.info("My X is: " + session.x());
+			Log.DEFAULT.info("My exchange key Y is: " + session.ourKey());
+		}
+
+		/*
+			Send out our key, then wait for their key.
+		*/
+
+		session.exchangeKeys();
+
+		Log.DEFAULT.info("Recap:");
+		if (session.curve() != null) {
+			Log.DEFAULT.info("Curve: " + session.curve());
+			Log.DEFAULT.info("My key (y1): " + session.curveOurKey());
+			Log.DEFAULT.info("Their key (y2): " + session.curveTheirKey());
+			Log.DEFAULT.info("Our shared key (k): " + HexFormat.of().formatHex(session.curveSharedKey()));
+		} else if (session.group() != null) {
+			Log.DEFAULT.info("Group: " + session.group());
+			Log.DEFAULT.info("My key (y1): " + session.bigOurKey());
+			Log.DEFAULT.info("Their key (y2): " + session.bigTheirKey());
+			Log.DEFAULT.info("Our shared key (k): " + session.bigSharedKey());
+		} else {
+			long sharedKey = session.sharedKey();
+
+			Log.DEFAULT.info("My key (y1): " + session.ourKey());
+			Log.DEFAULT.info("Their key (y2): " + session.theirKey());
+			Log.DEFAULT.info("Our shared key (k): " + sharedKey);
+		}
+	}
+
+	/**
+	 * The single-exchange peers show every received message, unless the log
+	 * level is configured.
+	 */
+	private static void traceByDefault() {
+		if (System.getProperty(Log.PROPERTY) == null) {
+			Log.DEFAULT.level(Log.Level.TRACE);
+		}
+	}
+
+	/**
+	 * Picks the group to propose from the parameter store, round-robin. Only
+	 * if the store is empty, a group is generated and added for later runs.
+	 *
+	 * @return The group.
+	 */
+	private static GroupParameters group() {
+		try (ParameterStore store = ParameterStore.open(ParameterStore.DEFAULT_PATH)) {
+			GroupParameters group = store.next();
+			if (group == null) {
+				group = SafePrimeGenerator.DEFAULT.generate(PROTOCOL_BITS);
+				store.add(group);
+			}
+			return group;
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Parameter store not available: " + e.getLocalizedMessage());
+			return SafePrimeGenerator.DEFAULT.generate(PROTOCOL_BITS);
+		}
+	}
+
+	/**
+	 * Generates groups for the parameter store, so that active peers do not
+	 * have to.
+	 *
+	 * @param count
+	 *            Number of groups to add.
+	 */
+	private static void storeMode(int count) {
+		try (ParameterStore store = ParameterStore.open(ParameterStore.DEFAULT_PATH)) {
+			for (int i = 0; i < count; i++) {
+				store.add(SafePrimeGenerator.DEFAULT.generate(PROTOCOL_BITS));
+			}
+			Log.DEFAULT.info(store.size() + " groups in " + ParameterStore.DEFAULT_PATH);
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Parameter store not available: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Generates group parameters and prints them along with the time taken.
+	 *
+	 * @param bits
+	 *            Size of the modulus in bits.
+	 */
+	private static void generateMode(int bits) {
+		long start = System.nanoTime();
+		GroupParameters group = SafePrimeGenerator.DEFAULT.generate(bits);
+		long millis = (System.nanoTime() - start) / 1000000;
+
+		Log.DEFAULT.info("Safe prime group of " + bits + " bits generated in " + millis + " ms");
+		Log.DEFAULT.info(group.toString());
+	}
+
+	// ----------------------- MAIN METHOD ---------------------
+	public static void main(String[] args) {
+
+		if (args.length < 1) {
+            System.out.println("Usage: java -jar peer.jar <active passivePeerIP [binary] [pipeline count | async count | modp group | curve name | (load | pool) peers rate seconds] | passive [nio | threads | virtual] | generate bits | store count>");
+			System.out.println("Hint: Pass ip of passive peer as second argument while launching a active peer.");
+
+		} else {
+			if (args.length  == 1 && args[0].equals("passive")) {
+                passiveMode(1234);
+			} else if (args.length == 2 && args[0].equals("passive") && args[1].equals("nio")) {
+				try {
+					Metrics.DEFAULT.export();
+					new NioPassiveServer(1234).run();
+				} catch (IOException e) {
+					Log.DEFAULT.warn("Server could not be started: " + e.getLocalizedMessage());
+					System.exit(1);
+				}
+			} else if (args.length == 2 && args[0].equals("passive")
+					&& (args[1].equals("threads") || args[1].equals("virtual"))) {
+				try {
+					Metrics.DEFAULT.export();
+					new ThreadedPassiveServer(1234, args[1].equals("virtual")).run();
+				} catch (IOException e) {
+					Log.DEFAULT.warn("Server could not be started: " + e.getLocalizedMessage());
+					System.exit(1);
+				}
+            } else if(args.length == 2 && args[0].equals("active")) {
+
+				/*
+				IMPORTANT HINT: PASS IP OF PASSIVE PEER AS SECOND ARGUMENT ON LAUNCH
+				 */
+				activeMode(args[1], 1234, WireFormat.TEXT, null, null);
+			} else if (args.length == 3 && args[0].equals("active") && args[2].equals("binary")) {
+				activeMode(args[1], 1234, WireFormat.BINARY, null, null);
+			} else if ((args.length == 4 || args.length == 5 && args[2].equals("binary")) && args[0].equals("active")
+					&& args[args.length - 2].equals("pipeline")) {
+				pipelinedMode(args[1], 1234, args.length == 5 ? WireFormat.BINARY : WireFormat.TEXT,
+						Integer.parseInt(args[args.length - 1]));
+			} else if ((args.length == 4 || args.length == 5 && args[2].equals("binary")) && args[0].equals("active")
+					&& args[args.length - 2].equals("async")) {
+				asyncMode(args[1], 1234, args.length == 5 ? WireFormat.BINARY : WireFormat.TEXT,
+						Integer.parseInt(args[args.length - 1]));
+			} else if ((args.length == 4 || args.length == 5 && args[2].equals("binary")) && args[0].equals("active")
+					&& args[args.length - 2].equals("modp")) {
+				ModpGroup modp = ModpGroup.byId(Integer.parseInt(args[args.length - 1]));
+				if (modp == null) {
+					System.out.println("Unknown MODP group, expected 14, 15 or 16.");
+				} else {
+					activeMode(args[1], 1234, args.length == 5 ? WireFormat.BINARY : WireFormat.TEXT, modp, null);
+				}
+			} else if ((args.length == 4 || args.length == 5 && args[2].equals("binary")) && args[0].equals("active")
+					&& args[args.length - 2].equals("curve")) {
+				NamedCurve curve;
+				try {
+					curve = NamedCurve.valueOf(args[args.length - 1].toUpperCase());
+				} catch (IllegalArgumentException e) {
+					curve = null;
+				}
+				if (curve == null) {
+					System.out.println("Unknown curve, expected X25519 or X448.");
+				} else {
+					activeMode(args[1], 1234, args.length == 5 ? WireFormat.BINARY : WireFormat.TEXT, null, curve);
+				}
+			} else if ((args.length == 6 || args.length == 7 && args[2].equals("binary")) && args[0].equals("active")
+					&& (args[args.length - 4].equals("load") || args[args.length - 4].equals("pool"))) {
+				loadMode(args[1], 1234, args.length == 7 ? WireFormat.BINARY : WireFormat.TEXT,
+						Integer.parseInt(args[args.length - 3]), Double.parseDouble(args[args.length - 2]),
+						Integer.parseInt(args[args.length - 1]), args[args.length - 4].equals("pool"));
+			} else if (args.length == 2 && args[0].equals("generate")) {
+				generateMode(Integer.parseInt(args[1]));
+			} else if (args.length == 2 && args[0].equals("store")) {
+				storeMode(Integer.parseInt(args[1]));
+			} else {
+                System.out.println("Invalid arguments");
+				System.out.println("Hint: Pass ip of passive peer as second argument while launching a active peer.");
+			}
+		}
+	}
+
+}
+
+class AsyncTask implements Runnable {
+    @Override
+    public void run() {
+        String name = Thread.currentThread().getName();
+        try {
+            System.out.printf("Start of %s\n",name);
+            Thread.sleep(1500);
+            System.out.printf("End of %s\n",name);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package itsec.dh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Active peer which runs many independent key exchanges over one long-lived
+ * connection. Every message is tagged with the ID of its exchange, so the
+ * passive peer can answer the exchanges in any order.
+ *
+ * At most <code>window</code> exchanges are in flight at any time. Without
+ * this bound, both peers could block on writing while neither reads.
+ *
+ * Every exchange moves from proposed to acknowledged to done. A message which
+ * does not fit the state of its exchange, e.g. a KEY before the ACK or a
+ * second NAK, is a protocol error.
+ */
+class PipelinedClient implements Closeable {
+
+	private static final byte PROPOSED = 1;
+	private static final byte ACKED = 2;
+	private static final byte DONE = 3;
+
+	private final Socket socket;
+	private final MessageReader reader;
+	private final OutputStream outputStream;
+
+	private final int a;
+	private final int n;
+
+	private final ByteBuffer output = ByteBuffer.allocate(16 * Message.MAX_LENGTH);
+
+	/**
+	 * @param socket
+	 *            Connection to the passive peer. It is closed along with the
+	 *            client.
+	 * @param format
+	 *            Wire format to use.
+	 * @param group
+	 *            Group proposed for all exchanges, so its fixed-base table is
+	 *            reused.
+	 */
+	PipelinedClient(Socket socket, WireFormat format, GroupParameters group) throws IOException {
+		this.a = group.a();
+		this.n = group.n();
+		this.socket = socket;
+		this.socket.setTcpNoDelay(true);
+		this.reader = new MessageReader(socket.getInputStream());
+		this.reader.format(format);
+		this.outputStream = socket.getOutputStream();
+	}
+
+	/**
+	 * Runs a number of exchanges over the connection.
+	 *
+	 * @param count
+	 *            Number of exchanges.
+	 * @param window
+	 *            Maximum number of exchanges in flight.
+	 * @return The shared key of every exchange by ID, or -1 for exchanges the
+	 *         passive peer did not acknowledge or answered with an invalid
+	 *         key.
+	 * @throws IOException
+	 *             If the connection failed.
+	 * @throws IllegalArgumentException
+	 *             If the passive peer sent an unexpected message, or one out
+	 *             of order for its exchange.
+	 */
+	long[] run(int count, int window) throws IOException {
+		if (window < 1) {
+			throw new IllegalArgumentException("Expected a window of at least one exchange.");
+		}
+
+		RandomSource rng = RandomSource.DEFAULT;
+		int[] x = new int[count];
+		long[] ourKeys = new long[count];
+		long[] sharedKeys = new long[count];
+		long[] started = new long[count];
+		byte[] state = new byte[count];
+		Metrics metrics = Metrics.DEFAULT;
+
+		int proposed = 0;
+		int completed = 0;
+
+		while (completed < count) {
+			while (proposed < count && proposed - completed < window) {
+				if (output.remaining() < Message.MAX_LENGTH) {
+					flush();
+				}
+				started[proposed] = System.nanoTime();
+				reader.format().prop(output, proposed, a, n);
+				state[proposed] = PROPOSED;
+
+				x[proposed] = rng.nextSecret(n);
+				ourKeys[proposed] = FixedBaseCache.DEFAULT.pow(a, x[proposed], n);
+				proposed++;
+			}
+
+			// everything queued must be out before blocking on the answers
+			flush();
+
+			Message message = reader.read();
+			int id = message.id();
+			if (id < 0 || id >= proposed) {
+				throw new IllegalArgumentException("Unknown exchange ID " + id + ".");
+			}
+
+			switch (message.type()) {
+			case Message.ACK:
+				expect(state, id, PROPOSED, message);
+				state[id] = ACKED;
+				metrics.proposal.recordSince(started[id]);
+				reader.format().key(output, id, ourKeys[id]);
+				break;
+			case Message.NAK:
+				expect(state, id, PROPOSED, message);
+				state[id] = DONE;
+				metrics.proposal.recordSince(started[id]);
+				metrics.naks.increment();
+				sharedKeys[id] = -1;
+				completed++;
+				break;
+			case Message.KEY:
+				expect(state, id, ACKED, message);
+				state[id] = DONE;
+				// an invalid key only fails this exchange
+				sharedKeys[id] = message.key() > 0 ? Peer.expmod(message.key(), x[id], n) : -1;
+				if (sharedKeys[id] >= 0) {
+					metrics.handshake.recordSince(started[id]);
+					metrics.handshakes.increment();
+				}
+				completed++;
+				break;
+			default:
+				if (message.type() == Message.UNKNOWN) {
+					metrics.parseErrors.increment();
+				}
+				throw new IllegalArgumentException("Unexpected message " + message + ".");
+			}
+		}
+		return sharedKeys;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             If the exchange of the message is not in the expected state.
+	 */
+	private static void expect(byte[] state, int id, byte expected, Message message) {
+		if (state[id] != expected) {
+			throw new IllegalArgumentException("Unexpected message " + message + " for exchange " + id + ".");
+		}
+	}
+
+	private void flush() throws IOException {
+		if (output.position() == 0) {
+			return;
+		}
+		outputStream.write(output.array(), 0, output.position());
+		outputStream.flush();
+		output.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
@@ -0,0 +1,205 @@
+package itsec.dh;
+
+import java.nio.ByteBuffer;
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Source of the random numbers of the key exchange (secrets and proposed
+ * parameters). Creating a <code>SecureRandom</code> per handshake means
+ * seeding a new generator from the entropy source every time, so the
+ * implementations keep long-lived generators and differ in how concurrent
+ * handshakes share them:
+ *
+ * <ul>
+ * <li><code>perThread()</code>: one DRBG per thread, no sharing at all.
+ * Suited to a fixed set of threads; with a virtual thread per connection
+ * every connection would seed a generator of its own.</li>
+ * <li><code>striped()</code>: a fixed number of DRBGs, each guarded by its
+ * own lock, picked by the ID of the calling thread.</li>
+ * <li><code>buffered()</code>: every thread consumes a buffer filled by a
+ * single bulk <code>nextBytes()</code> draw from the striped DRBGs.</li>
+ * </ul>
+ *
+ * All implementations are thread-safe.
+ */
+interface RandomSource {
+
+	/**
+	 * Security strength (in bits) of the DRBGs of <code>DEFAULT</code>.
+	 */
+	int STRENGTH = 128;
+
+	/**
+	 * Source shared by the peers unless they are given another one.
+	 */
+	RandomSource DEFAULT = striped(STRENGTH, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * @return A uniformly distributed value in <code>[0, bound)</code>.
+	 */
+	int nextInt(int bound);
+
+	/**
+	 * Fills an array with random bytes, e.g. for secrets of large groups.
+	 */
+	void nextBytes(byte[] bytes);
+
+	/**
+	 * Draws the secret exponent x of an exchange in a protocol-size group,
+	 * uniformly from <code>[2, n - 2]</code>, which excludes the exponents
+	 * with the trivial keys 1, a and a^-1.
+	 *
+	 * @param n
+	 *            The modulus of the group.
+	 * @return The secret, or 1 if n &lt; 5 leaves no choice.
+	 */
+	default int nextSecret(int n) {
+		return n < 5 ? 1 : nextInt(n - 3) + 2;
+	}
+
+	/**
+	 * @param strength
+	 *            Security strength of the DRBGs in bits.
+	 * @return A source with one DRBG per thread.
+	 * @throws IllegalArgumentException
+	 *             If no DRBG with the strength is available.
+	 */
+	static RandomSource perThread(int strength) {
+		drbg(strength);
+		ThreadLocal<SecureRandom> generators = ThreadLocal.withInitial(() -> drbg(strength));
+		return new RandomSource() {
+			@Override
+			public int nextInt(int bound) {
+				return generators.get().nextInt(bound);
+			}
+
+			@Override
+			public void nextBytes(byte[] bytes) {
+				generators.get().nextBytes(bytes);
+			}
+		};
+	}
+
+	/**
+	 * @param strength
+	 *            Security strength of the DRBGs in bits.
+	 * @param stripes
+	 *            Number of DRBGs.
+	 * @return A source with a fixed number of DRBGs shared by all threads.
+	 * @throws IllegalArgumentException
+	 *             If no DRBG with the strength is available.
+	 */
+	static RandomSource striped(int strength, int stripes) {
+		return new Striped(strength, stripes);
+	}
+
+	/**
+	 * @param strength
+	 *            Security strength of the DRBGs in bits.
+	 * @param bufferSize
+	 *            Number of bytes drawn at once per thread.
+	 * @return A source which hands out random bytes drawn in bulk.
+	 * @throws IllegalArgumentException
+	 *             If no DRBG with the strength is available.
+	 */
+	static RandomSource buffered(int strength, int bufferSize) {
+		if (bufferSize < 4) {
+			throw new IllegalArgumentException("Expected a buffer of at least 4 bytes.");
+		}
+		Striped generators = new Striped(strength, Runtime.getRuntime().availableProcessors());
+		ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(bufferSize & ~3).limit(0));
+
+		return new RandomSource() {
+			@Override
+			public int nextInt(int bound) {
+				if (bound <= 0) {
+					throw new IllegalArgumentException("Expected bound to be positive");
+				}
+				ByteBuffer buffer = buffers.get();
+				int m = bound - 1;
+				while (true) {
+					if (buffer.remaining() < 4) {
+						refill(buffer);
+					}
+					// rejection of the values above the largest multiple of the bound,
+					// as in Random.nextInt(bound)
+					int u = buffer.getInt() >>> 1;
+					int r = u % bound;
+					if (u - r + m >= 0) {
+						return r;
+					}
+				}
+			}
+
+			@Override
+			public void nextBytes(byte[] bytes) {
+				ByteBuffer buffer = buffers.get();
+				for (int i = 0; i < bytes.length;) {
+					if (!buffer.hasRemaining()) {
+						refill(buffer);
+					}
+					int length = Math.min(buffer.remaining(), bytes.length - i);
+					buffer.get(bytes, i, length);
+					i += length;
+				}
+			}
+
+			private void refill(ByteBuffer buffer) {
+				buffer.clear();
+				generators.nextBytes(buffer.array());
+			}
+		};
+	}
+
+	/**
+	 * Creates a DRBG with prediction resistance off and reseeding enabled.
+	 */
+	private static SecureRandom drbg(int strength) {
+		try {
+			return SecureRandom.getInstance("DRBG",
+					DrbgParameters.instantiation(strength, DrbgParameters.Capability.RESEED_ONLY, null));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("No DRBG with strength " + strength + " available.", e);
+		}
+	}
+
+	/**
+	 * DRBGs guarded by a lock each.
+	 */
+	final class Striped implements RandomSource {
+
+		private final SecureRandom[] generators;
+
+		private Striped(int strength, int stripes) {
+			if (stripes < 1) {
+				throw new IllegalArgumentException("Expected at least one stripe.");
+			}
+			generators = new SecureRandom[stripes];
+			for (int i = 0; i < stripes; i++) {
+				generators[i] = drbg(strength);
+			}
+		}
+
+		@Override
+		public int nextInt(int bound) {
+			SecureRandom generator = stripe();
+			synchronized (generator) {
+				return generator.nextInt(bound);
+			}
+		}
+
+		@Override
+		public void nextBytes(byte[] bytes) {
+			SecureRandom generator = stripe();
+			synchronized (generator) {
+				generator.nextBytes(bytes);
+			}
+		}
+
+		private SecureRandom stripe() {
+			return generators[(int) (Thread.currentThread().threadId() % generators.length)];
+		}
+	}
+}
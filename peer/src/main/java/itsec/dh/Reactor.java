@@ -0,0 +1,288 @@
+package itsec.dh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Event loop on a single thread: a selector which dispatches the readiness
+ * of its channels to their handlers, timers and tasks handed over by other
+ * threads. Nothing on the loop blocks; waiting for data, for room to write
+ * or for a timeout costs no thread.
+ *
+ * Channels are registered and timers are scheduled on the loop thread only,
+ * so their state needs no locks. Other threads hand work over by
+ * <code>execute()</code>, which wakes up the selector.
+ */
+final class Reactor implements Executor, Closeable {
+
+	/**
+	 * Callback of a registered channel.
+	 */
+	interface Handler {
+
+		/**
+		 * Called on the loop thread when the channel is ready for some of its
+		 * interest operations, see <code>SelectionKey.readyOps()</code>.
+		 *
+		 * @throws IOException
+		 *             To close the channel. <code>failed()</code> is called.
+		 */
+		void ready(SelectionKey key) throws IOException;
+
+		/**
+		 * Called on the loop thread if <code>ready()</code> failed, after the
+		 * channel was closed.
+		 */
+		void failed(IOException e);
+	}
+
+	/**
+	 * A scheduled task, which may be cancelled until it runs.
+	 */
+	static final class Timer implements Comparable<Timer> {
+
+		private final long deadline;
+		private final Runnable task;
+		private boolean cancelled;
+
+		private Timer(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		/**
+		 * Cancels the timer. Must be called on the loop thread.
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			return Long.compare(deadline - other.deadline, 0);
+		}
+	}
+
+	private final Selector selector;
+	private final Thread thread;
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+	private volatile boolean closed;
+
+	/**
+	 * Opens the selector and starts the loop on a new daemon thread.
+	 *
+	 * @param name
+	 *            Name of the loop thread.
+	 * @throws IOException
+	 *             If the selector could not be opened.
+	 */
+	Reactor(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return Whether the caller runs on the loop thread.
+	 */
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs the task on the loop thread: at once if called there, otherwise
+	 * as soon as the loop wakes up. Once the loop is closed, the task runs on
+	 * the caller after the loop has stopped, where <code>register()</code>
+	 * fails, so that the task can fail its futures instead of being lost.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		if (inLoop()) {
+			task.run();
+			return;
+		}
+		tasks.add(task);
+		selector.wakeup();
+		// the loop may have drained the queue for the last time already
+		if (closed && tasks.remove(task)) {
+			boolean interrupted = false;
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			run(task);
+		}
+	}
+
+	/**
+	 * Registers a channel on the loop. Must be called on the loop thread.
+	 *
+	 * @param channel
+	 *            Channel in non-blocking mode.
+	 * @param ops
+	 *            Initial interest operations.
+	 * @param handler
+	 *            Callback of the channel, attached to its key.
+	 * @return The key of the channel.
+	 * @throws ClosedChannelException
+	 *             If the channel or the loop is closed.
+	 */
+	SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		return channel.register(selector, ops, handler);
+	}
+
+	/**
+	 * Schedules a task on the loop. Must be called on the loop thread.
+	 *
+	 * @param delayNanos
+	 *            Delay after which the task runs.
+	 * @return The timer, to cancel the task.
+	 */
+	Timer schedule(long delayNanos, Runnable task) {
+		Timer timer = new Timer(System.nanoTime() + delayNanos, task);
+		timers.add(timer);
+		return timer;
+	}
+
+	private void run() {
+		try {
+			while (!closed) {
+				long timeout = runTimers();
+				if (tasks.isEmpty()) {
+					if (timeout < 0) {
+						selector.select();
+					} else {
+						// round up, 0 would block
+						selector.select(Math.max(1, (timeout + 999999) / 1000000));
+					}
+				} else {
+					selector.selectNow();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					dispatch(key);
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					run(task);
+				}
+			}
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Event loop failed: " + e.getLocalizedMessage());
+		} finally {
+			closeAll();
+		}
+	}
+
+	private void dispatch(SelectionKey key) {
+		if (!key.isValid()) {
+			return;
+		}
+		Handler handler = (Handler) key.attachment();
+		try {
+			handler.ready(key);
+		} catch (IOException e) {
+			close(key);
+			handler.failed(e);
+		} catch (RuntimeException e) {
+			Log.DEFAULT.warn("Error in event handler: " + e);
+			close(key);
+			handler.failed(new IOException(e));
+		}
+	}
+
+	private void run(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			Log.DEFAULT.warn("Error in event loop task: " + e);
+		}
+	}
+
+	/**
+	 * Runs the due timers.
+	 *
+	 * @return Nanoseconds until the next timer is due, -1 if there is none.
+	 */
+	private long runTimers() {
+		Timer timer;
+		while ((timer = timers.peek()) != null) {
+			if (timer.cancelled) {
+				timers.poll();
+				continue;
+			}
+			long left = timer.deadline - System.nanoTime();
+			if (left > 0) {
+				return left;
+			}
+			timers.poll();
+			run(timer.task);
+		}
+		return -1;
+	}
+
+	static void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// closed anyway
+		}
+	}
+
+	private void closeAll() {
+		closed = true;
+		// let handed over work fail on its own
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			run(task);
+		}
+		for (SelectionKey key : selector.keys()) {
+			Handler handler = (Handler) key.attachment();
+			close(key);
+			if (handler != null) {
+				handler.failed(new ClosedChannelException());
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// closed anyway
+		}
+	}
+
+	/**
+	 * Stops the loop, which closes all registered channels.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		selector.wakeup();
+	}
+}
@@ -0,0 +1,281 @@
+package itsec.dh;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Generates group parameters from safe primes p = 2q + 1 (q prime) and a
+ * verified primitive root g modulo p.
+ *
+ * The search starts at a random odd q and walks windows of consecutive
+ * candidates q, q + 2, ... Within a window a sieve removes every candidate
+ * for which q or p has a small prime factor, so only few candidates reach the
+ * expensive tests: a single Miller-Rabin round to base 2 on q, the Pocklington
+ * test 2^(p-1) = 1 mod p, which proves p prime once q is, and finally the
+ * remaining Miller-Rabin rounds on q.
+ *
+ * One search per thread of a fork/join pool runs in parallel until the first
+ * one finds a safe prime.
+ */
+final class SafePrimeGenerator {
+
+	/**
+	 * Shared generator on the common fork/join pool.
+	 */
+	static final SafePrimeGenerator DEFAULT = new SafePrimeGenerator(ForkJoinPool.commonPool(), 40);
+
+	/**
+	 * Bound of the primes the sieve removes candidates by.
+	 */
+	static final int SIEVE_LIMIT = 1 << 16;
+
+	/**
+	 * Number of candidates q per sieve window.
+	 */
+	private static final int WINDOW = 1 << 14;
+
+	private static final int[] SMALL_PRIMES = primesBelow(SIEVE_LIMIT);
+
+	private static final BigInteger TWO = BigInteger.TWO;
+
+	private final ForkJoinPool pool;
+	private final int rounds;
+
+	private final SecureRandom rng = new SecureRandom();
+
+	/**
+	 * @param pool
+	 *            Pool to run the parallel searches on, one per thread.
+	 * @param rounds
+	 *            Number of Miller-Rabin rounds on q. A composite passes all
+	 *            of them with a probability of at most 4^-rounds.
+	 */
+	SafePrimeGenerator(ForkJoinPool pool, int rounds) {
+		if (rounds < 1) {
+			throw new IllegalArgumentException("Expected at least one Miller-Rabin round.");
+		}
+		this.pool = pool;
+		this.rounds = rounds;
+	}
+
+	/**
+	 * Generates a safe prime of the given size and its smallest primitive
+	 * root.
+	 *
+	 * @param bits
+	 *            Size of p in bits, at least 8.
+	 * @return The group parameters.
+	 */
+	GroupParameters generate(int bits) {
+		if (bits < 8) {
+			throw new IllegalArgumentException("Expected a modulus of at least 8 bits.");
+		}
+
+		AtomicReference<BigInteger> found = new AtomicReference<>();
+
+		int parallelism = pool.getParallelism();
+		ForkJoinTask<?>[] searches = new ForkJoinTask<?>[parallelism];
+		for (int i = 0; i < parallelism; i++) {
+			searches[i] = pool.submit(() -> search(bits, found));
+		}
+		for (ForkJoinTask<?> search : searches) {
+			search.join();
+		}
+
+		BigInteger p = found.get();
+		return new GroupParameters(p, generator(p));
+	}
+
+	/**
+	 * Searches windows of candidates until a safe prime is found, by this or
+	 * another search.
+	 */
+	private void search(int bits, AtomicReference<BigInteger> found) {
+		// q has bits - 1 bits, the top one set, so that p has exactly bits bits
+		BigInteger top = BigInteger.ONE.shiftLeft(bits - 2);
+		BigInteger limit = top.shiftLeft(1);
+
+		// larger sieve primes could equal q itself
+		int sievePrimes = countBelow(bits - 2 >= 31 ? Integer.MAX_VALUE : 1 << (bits - 2));
+		boolean[] composite = new boolean[WINDOW];
+
+		while (found.get() == null) {
+			BigInteger start = new BigInteger(bits - 2, rng).or(top).setBit(0);
+
+			sieve(start, composite, sievePrimes);
+
+			for (int i = 0; i < WINDOW && found.get() == null; i++) {
+				if (composite[i]) {
+					continue;
+				}
+				BigInteger q = start.add(BigInteger.valueOf(2L * i));
+				if (q.compareTo(limit) >= 0) {
+					break;
+				}
+				BigInteger p = q.shiftLeft(1).setBit(0);
+				if (isSafePrime(p, q)) {
+					found.compareAndSet(null, p);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks every candidate q = start + 2i of the window for which q or 2q + 1
+	 * is divisible by one of the first <code>count</code> odd small primes.
+	 */
+	private static void sieve(BigInteger start, boolean[] composite, int count) {
+		Arrays.fill(composite, false);
+
+		for (int k = 0; k < count; k++) {
+			int r = SMALL_PRIMES[k];
+			long residue = start.mod(BigInteger.valueOf(r)).longValue();
+			long inverse2 = (r + 1) / 2;
+			long inverse4 = inverse2 * inverse2 % r;
+
+			// q + 2i = 0 mod r  <=>  i = -q / 2 mod r
+			for (long i = (r - residue) * inverse2 % r; i < composite.length; i += r) {
+				composite[(int) i] = true;
+			}
+			// 2(q + 2i) + 1 = 0 mod r  <=>  i = -(2q + 1) / 4 mod r
+			for (long i = (r - (2 * residue + 1) % r) % r * inverse4 % r; i < composite.length; i += r) {
+				composite[(int) i] = true;
+			}
+		}
+	}
+
+	/**
+	 * Tests a sieved candidate, cheapest tests first.
+	 */
+	private boolean isSafePrime(BigInteger p, BigInteger q) {
+		if (!millerRabin(q, TWO)) {
+			return false;
+		}
+		// Pocklington: as q > sqrt(p) and 3 does not divide p, 2^(p-1) = 1 mod p
+		// proves p prime, given q is prime
+		if (!TWO.modPow(p.subtract(BigInteger.ONE), p).equals(BigInteger.ONE)) {
+			return false;
+		}
+		return isProbablePrime(q, rounds, rng);
+	}
+
+	/**
+	 * Finds the smallest primitive root modulo a safe prime p = 2q + 1. As the
+	 * group has order 2q, g generates it iff neither g^2 nor g^q is 1.
+	 *
+	 * @return The generator.
+	 */
+	static BigInteger generator(BigInteger p) {
+		BigInteger q = p.shiftRight(1);
+		for (BigInteger g = TWO;; g = g.add(BigInteger.ONE)) {
+			if (isGenerator(g, p, q)) {
+				return g;
+			}
+		}
+	}
+
+	/**
+	 * Verifies that g is a primitive root modulo the safe prime p = 2q + 1.
+	 */
+	static boolean isGenerator(BigInteger g, BigInteger p, BigInteger q) {
+		return g.signum() > 0 && g.compareTo(p) < 0 && !g.modPow(TWO, p).equals(BigInteger.ONE)
+				&& !g.modPow(q, p).equals(BigInteger.ONE);
+	}
+
+	/**
+	 * Miller-Rabin test with random bases.
+	 *
+	 * @param n
+	 *            Odd number greater than 3 to test.
+	 * @param rounds
+	 *            Number of bases to test.
+	 * @param rng
+	 *            Source of the bases.
+	 * @return False if n is composite, true if it is prime with a probability
+	 *         of at least 1 - 4^-rounds.
+	 */
+	static boolean isProbablePrime(BigInteger n, int rounds, Random rng) {
+		BigInteger range = n.subtract(BigInteger.valueOf(3));
+		for (int i = 0; i < rounds; i++) {
+			// base in [2, n - 2]
+			BigInteger base;
+			do {
+				base = new BigInteger(range.bitLength(), rng);
+			} while (base.compareTo(range) >= 0);
+			if (!millerRabin(n, base.add(TWO))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * One Miller-Rabin round: writes n - 1 = d * 2^s with d odd and checks
+	 * whether the base is a witness for the compositeness of n.
+	 *
+	 * @return False if n is composite.
+	 */
+	static boolean millerRabin(BigInteger n, BigInteger base) {
+		BigInteger nMinus1 = n.subtract(BigInteger.ONE);
+		int s = nMinus1.getLowestSetBit();
+		BigInteger d = nMinus1.shiftRight(s);
+
+		BigInteger x = base.modPow(d, n);
+		if (x.equals(BigInteger.ONE) || x.equals(nMinus1)) {
+			return true;
+		}
+		for (int i = 1; i < s; i++) {
+			x = x.multiply(x).mod(n);
+			if (x.equals(nMinus1)) {
+				return true;
+			}
+			if (x.equals(BigInteger.ONE)) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The number of odd small primes below the bound.
+	 */
+	private static int countBelow(int bound) {
+		int count = 0;
+		while (count < SMALL_PRIMES.length && SMALL_PRIMES[count] < bound) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Sieve of Eratosthenes.
+	 *
+	 * @return The odd primes below the bound.
+	 */
+	private static int[] primesBelow(int bound) {
+		boolean[] composite = new boolean[bound];
+		int count = 0;
+		for (int i = 3; i < bound; i += 2) {
+			if (!composite[i]) {
+				count++;
+				for (long j = (long) i * i; j < bound; j += 2 * i) {
+					composite[(int) j] = true;
+				}
+			}
+		}
+
+		int[] primes = new int[count];
+		int k = 0;
+		for (int i = 3; i < bound; i += 2) {
+			if (!composite[i]) {
+				primes[k++] = i;
+			}
+		}
+		return primes;
+	}
+}
@@ -0,0 +1,138 @@
+package itsec.dh;
+
+import java.math.BigInteger;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Result of a completed key exchange: the shared key, the parameters it was
+ * agreed in and the other peer. Exactly one of the parameter kinds is set:
+ * a and n of a protocol-size group, a MODP group of RFC 3526, or a curve.
+ */
+final class SharedKey {
+
+	private final SocketAddress peer;
+	private final int id;
+	private final int a;
+	private final int n;
+	private final ModpGroup group;
+	private final NamedCurve curve;
+	private final byte[] key;
+
+	private SharedKey(SocketAddress peer, int id, int a, int n, ModpGroup group, NamedCurve curve, byte[] key) {
+		this.peer = peer;
+		this.id = id;
+		this.a = a;
+		this.n = n;
+		this.group = group;
+		this.curve = curve;
+		this.key = key;
+	}
+
+	/**
+	 * Key k = y^x mod n of a protocol-size group.
+	 */
+	static SharedKey of(SocketAddress peer, int id, int a, int n, long key) {
+		return new SharedKey(peer, id, a, n, null, null, BigInteger.valueOf(key).toByteArray());
+	}
+
+	/**
+	 * Key k = y^x mod p of a MODP group.
+	 */
+	static SharedKey of(SocketAddress peer, int id, ModpGroup group, BigInteger key) {
+		return new SharedKey(peer, id, 0, 0, group, null, key.toByteArray());
+	}
+
+	/**
+	 * Shared secret of XDH on a curve, as defined by RFC 7748.
+	 */
+	static SharedKey of(SocketAddress peer, int id, NamedCurve curve, byte[] key) {
+		return new SharedKey(peer, id, 0, 0, null, curve, key.clone());
+	}
+
+	SocketAddress peer() {
+		return peer;
+	}
+
+	/**
+	 * @return The exchange ID on a pipelined or pooled connection,
+	 *         <code>Message.NO_ID</code> otherwise.
+	 */
+	int id() {
+		return id;
+	}
+
+	/**
+	 * @return The generator of the protocol-size group, 0 otherwise.
+	 */
+	int a() {
+		return a;
+	}
+
+	/**
+	 * @return The modulus of the protocol-size group, 0 otherwise.
+	 */
+	int n() {
+		return n;
+	}
+
+	/**
+	 * @return The MODP group, null unless agreed in big-modulus mode.
+	 */
+	ModpGroup group() {
+		return group;
+	}
+
+	/**
+	 * @return The curve, null unless agreed in curve mode.
+	 */
+	NamedCurve curve() {
+		return curve;
+	}
+
+	/**
+	 * @return The key as bytes: the big-endian two's-complement encoding of k,
+	 *         or the XDH output in curve mode. A new array on every call.
+	 */
+	byte[] key() {
+		return key.clone();
+	}
+
+	/**
+	 * @return The key as number: k, or the XDH output read as unsigned
+	 *         big-endian number in curve mode.
+	 */
+	BigInteger value() {
+		return new BigInteger(1, key);
+	}
+
+	/**
+	 * Both sides of an exchange hold equal shared keys, so the peer and the
+	 * exchange ID are not compared.
+	 */
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof SharedKey that && Arrays.equals(key, that.key) && a == that.a && n == that.n
+				&& group == that.group && curve == that.curve;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(key);
+	}
+
+	/**
+	 * Shows the parameters and the key, as the passive peers log it.
+	 */
+	@Override
+	public String toString() {
+		if (curve != null) {
+			return curve + ", k = " + HexFormat.of().formatHex(key);
+		}
+		if (group != null) {
+			return group + ", k = " + value().toString(16);
+		}
+		return "a = " + a + ", n = " + n + ", k = " + value();
+	}
+}
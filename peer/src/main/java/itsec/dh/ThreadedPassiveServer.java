@@ -0,0 +1,141 @@
+package itsec.dh;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HexFormat;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Passive peer that serves many Diffie-Hellman key exchanges at once while
+ * keeping the blocking style of <code>Peer.passiveMode()</code>. Every
+ * accepted connection runs as a task on an executor, which also sends our key
+ * and receives theirs, so an exchange takes exactly one task.
+ *
+ * With virtual threads enabled, the tasks run on
+ * <code>Executors.newVirtualThreadPerTaskExecutor()</code>, so a connection
+ * blocked reading from its socket does not hold an OS thread. Otherwise a
+ * platform thread is used per task, which allows comparing both variants.
+ */
+class ThreadedPassiveServer {
+
+	private final int port;
+	private final boolean virtualThreads;
+
+	private final KeyPairPool keyPairs;
+
+	/**
+	 * Creates a server with a key pair pool with the default watermarks.
+	 *
+	 * @param port
+	 *            Port to listen on for connection requests.
+	 * @param virtualThreads
+	 *            Whether to run the tasks on virtual (true) or platform
+	 *            (false) threads.
+	 */
+	ThreadedPassiveServer(int port, boolean virtualThreads) {
+		this(port, virtualThreads, new KeyPairPool());
+	}
+
+	/**
+	 * @param port
+	 *            Port to listen on for connection requests.
+	 * @param virtualThreads
+	 *            Whether to run the tasks on virtual (true) or platform
+	 *            (false) threads.
+	 * @param keyPairs
+	 *            Pool to take our secrets and exchange keys from.
+	 */
+	ThreadedPassiveServer(int port, boolean virtualThreads, KeyPairPool keyPairs) {
+		this.port = port;
+		this.virtualThreads = virtualThreads;
+		this.keyPairs = keyPairs;
+	}
+
+	/**
+	 * Binds the listening socket and accepts connections until the socket
+	 * fails.
+	 *
+	 * @throws IOException
+	 *             If the listening socket cannot be set up.
+	 */
+	void run() throws IOException {
+		try (ExecutorService executor = virtualThreads ? Executors.newVirtualThreadPerTaskExecutor()
+				: Executors.newCachedThreadPool();
+				ServerSocket ssocket = new ServerSocket()) {
+
+			ssocket.bind(new InetSocketAddress(port), 4096);
+
+			Log.DEFAULT.info("Waiting at port " + port + " (" + (virtualThreads ? "virtual" : "platform")
+					+ " threads)");
+
+			while (true) {
+				Socket socket = ssocket.accept();
+				long accepted = System.nanoTime();
+				executor.submit(() -> {
+					Metrics.DEFAULT.accept.recordSince(accepted);
+					exchange(socket);
+				});
+			}
+		}
+	}
+
+	/**
+	 * Executes the key exchange protocol in passive mode on one accepted
+	 * connection. An exchange tagged with an exchange ID, e.g. from a
+	 * <code>ConnectionPool</code>, leaves the connection open for the next
+	 * one, until the active peer closes it.
+	 *
+	 * @param socket
+	 *            The accepted connection. It is closed when the exchange ends.
+	 */
+	private void exchange(Socket socket) {
+		int served = 0;
+		try (HandshakeSession session = new HandshakeSession(socket)) {
+			// a stalled peer must not hold its thread forever
+			socket.setSoTimeout(ConnectionPool.idleTimeout());
+			do {
+				session.reset();
+				session.awaitProposal();
+				session.generateKey(keyPairs);
+				session.exchangeKeys();
+
+				// the shared key is derived in any case, only its output depends on the level
+				if (session.curve() != null) {
+					byte[] sharedKey = session.curveSharedKey();
+					if (Log.DEFAULT.enabled(Log.Level.INFO)) {
+						Log.DEFAULT.info("Exchange with " + socket.getRemoteSocketAddress() + " completed ("
+								+ session.curve() + ", k = " + HexFormat.of().formatHex(sharedKey) + ")");
+					}
+				} else if (session.group() != null) {
+					BigInteger sharedKey = session.bigSharedKey();
+					if (Log.DEFAULT.enabled(Log.Level.INFO)) {
+						Log.DEFAULT.info("Exchange with " + socket.getRemoteSocketAddress() + " completed ("
+								+ session.group() + ", k = " + sharedKey.toString(16) + ")");
+					}
+				} else {
+					long sharedKey = session.sharedKey();
+					if (Log.DEFAULT.enabled(Log.Level.INFO)) {
+						Log.DEFAULT.info("Exchange with " + socket.getRemoteSocketAddress() + " completed (y1 = "
+								+ session.ourKey() + ", y2 = " + session.theirKey() + ", k = " + sharedKey + ")");
+					}
+				}
+				served++;
+			} while (session.tagged());
+
+		} catch (EOFException e) {
+			// a kept-open connection ends when the active peer closes it
+			if (served == 0) {
+				Log.DEFAULT.warn("Error receiving data: " + e.getLocalizedMessage());
+			}
+		} catch (IOException e) {
+			Log.DEFAULT.warn("Error receiving data: " + e.getLocalizedMessage());
+		} catch (RuntimeException e) {
+			Log.DEFAULT.warn("Error on data exchange.");
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package itsec.dh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Connection between two peers as a pair of byte streams, so that the
+ * protocol logic does not depend on sockets. Closing the transport closes
+ * both streams.
+ *
+ * <code>tcp()</code> wraps a connected socket. <code>loopback()</code>
+ * connects two transports in memory, without any kernel networking, so the
+ * complete protocol can be run and benchmarked in one JVM, e.g. to separate
+ * the cost of crypto and parsing from the one of the network.
+ */
+interface Transport extends Closeable {
+
+	/**
+	 * @return Stream of the bytes received from the other peer.
+	 */
+	InputStream input();
+
+	/**
+	 * @return Stream of the bytes sent to the other peer.
+	 */
+	OutputStream output();
+
+	/**
+	 * Transport over a connected TCP socket.
+	 *
+	 * @param socket
+	 *            Connected socket, closed along with the transport.
+	 * @throws IOException
+	 *             If the streams of the socket cannot be created.
+	 */
+	static Transport tcp(Socket socket) throws IOException {
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+		return new Transport() {
+
+			@Override
+			public InputStream input() {
+				return in;
+			}
+
+			@Override
+			public OutputStream output() {
+				return out;
+			}
+
+			@Override
+			public void close() throws IOException {
+				socket.close();
+			}
+
+			@Override
+			public String toString() {
+				return String.valueOf(socket.getRemoteSocketAddress());
+			}
+		};
+	}
+
+	/**
+	 * Two transports connected in memory by a lock-free ring buffer per
+	 * direction, see <code>MemoryTransport</code>.
+	 *
+	 * @param capacity
+	 *            Size of each ring buffer in bytes, a power of two. At least
+	 *            <code>Message.MAX_LENGTH</code>, so that sending a message
+	 *            does not wait for the other peer to read, which
+	 *            <code>HandshakeSession.exchangeKeys()</code> relies on.
+	 * @return Both ends of the connection.
+	 */
+	static Transport[] loopback(int capacity) {
+		return MemoryTransport.pair(capacity);
+	}
+}
@@ -0,0 +1,317 @@
+package itsec.dh;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Framing of the protocol messages on the wire.
+ *
+ * <code>TEXT</code> is the original newline-delimited ASCII protocol
+ * (<code>"PROP a n"</code>, <code>"ACK"</code>, <code>"NAK"</code>,
+ * <code>"KEY y"</code>), extended by <code>"MODP id"</code>, which proposes an
+ * RFC 3526 group instead of a and n, and <code>"CURVE name"</code>, which
+ * proposes an elliptic curve. <code>BINARY</code> frames consist of a fixed
+ * header (opcode byte and the payload length as big-endian unsigned short)
+ * followed by big-endian integer fields: PROP carries a and n as 4-byte ints,
+ * MODP the group number as 4-byte int, CURVE the TLS NamedGroup code as
+ * 2-byte unsigned short, KEY the key as unsigned magnitude without leading
+ * zeros, ACK and NAK have no payload. The opcodes equal the message types of
+ * <code>Message</code>.
+ *
+ * On pipelined connections every message is tagged with the ID of its
+ * exchange: by the prefix <code>"#id "</code> in text format, and by the
+ * <code>Message.TAGGED</code> flag on the opcode followed by the ID as 4-byte
+ * int in binary format.
+ *
+ * The active peer picks the format. As no text message starts with a control
+ * character, the passive peer detects the format from the first received
+ * byte and answers in kind, see <code>detect()</code>.
+ */
+enum WireFormat {
+
+	TEXT {
+		@Override
+		int frame(ByteBuffer buf, int from, int to) {
+			for (int i = from; i < to; i++) {
+				if (buf.get(i) == '\n') {
+					return i + 1;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		int parse(Message message, ByteBuffer buf, int from, int end) {
+			return message.parse(buf, from, end - 1);
+		}
+
+		@Override
+		void prop(ByteBuffer out, int id, int a, int n) {
+			tag(out, id);
+			out.put(PROP_TEXT);
+			putDecimal(out, a);
+			out.put((byte) ' ');
+			putDecimal(out, n);
+			out.put((byte) '\n');
+		}
+
+		@Override
+		void ack(ByteBuffer out, int id) {
+			tag(out, id);
+			out.put(ACK_TEXT);
+		}
+
+		@Override
+		void nak(ByteBuffer out, int id) {
+			tag(out, id);
+			out.put(NAK_TEXT);
+		}
+
+		@Override
+		void modp(ByteBuffer out, int id, int group) {
+			tag(out, id);
+			out.put(MODP_TEXT);
+			putDecimal(out, group);
+			out.put((byte) '\n');
+		}
+
+		@Override
+		void curve(ByteBuffer out, int id, NamedCurve curve) {
+			tag(out, id);
+			out.put(CURVE_TEXT);
+			out.put(curve.wireName());
+			out.put((byte) '\n');
+		}
+
+		@Override
+		void key(ByteBuffer out, int id, long key) {
+			tag(out, id);
+			out.put(KEY_TEXT);
+			putDecimal(out, key);
+			out.put((byte) '\n');
+		}
+
+		@Override
+		void key(ByteBuffer out, int id, byte[] magnitude, int length) {
+			tag(out, id);
+			out.put(KEY_TEXT);
+			putDecimal(out, magnitude, length);
+			out.put((byte) '\n');
+		}
+
+		private void tag(ByteBuffer out, int id) {
+			if (id != Message.NO_ID) {
+				out.put((byte) '#');
+				putDecimal(out, id);
+				out.put((byte) ' ');
+			}
+		}
+	},
+
+	BINARY {
+		@Override
+		int frame(ByteBuffer buf, int from, int to) {
+			if (to - from < HEADER) {
+				return -1;
+			}
+			int end = from + HEADER + (buf.getShort(from + 1) & 0xFFFF);
+			return end <= to ? end : -1;
+		}
+
+		@Override
+		int parse(Message message, ByteBuffer buf, int from, int end) {
+			return message.parseFrame(buf, from, end);
+		}
+
+		@Override
+		void prop(ByteBuffer out, int id, int a, int n) {
+			header(out, Message.PROP, id, 8);
+			out.putInt(a);
+			out.putInt(n);
+		}
+
+		@Override
+		void ack(ByteBuffer out, int id) {
+			header(out, Message.ACK, id, 0);
+		}
+
+		@Override
+		void nak(ByteBuffer out, int id) {
+			header(out, Message.NAK, id, 0);
+		}
+
+		@Override
+		void modp(ByteBuffer out, int id, int group) {
+			header(out, Message.MODP, id, 4);
+			out.putInt(group);
+		}
+
+		@Override
+		void curve(ByteBuffer out, int id, NamedCurve curve) {
+			header(out, Message.CURVE, id, 2);
+			out.putShort((short) curve.id);
+		}
+
+		@Override
+		void key(ByteBuffer out, int id, byte[] magnitude, int length) {
+			int start = 0;
+			while (start < length - 1 && magnitude[start] == 0) {
+				start++;
+			}
+			header(out, Message.KEY, id, length - start);
+			out.put(magnitude, start, length - start);
+		}
+
+		@Override
+		void key(ByteBuffer out, int id, long key) {
+			if (key < 0) {
+				throw new IllegalArgumentException("Expected key to be >= 0");
+			}
+			int length = Math.max(1, (64 - Long.numberOfLeadingZeros(key) + 7) / 8);
+			header(out, Message.KEY, id, length);
+			for (int shift = 8 * (length - 1); shift >= 0; shift -= 8) {
+				out.put((byte) (key >>> shift));
+			}
+		}
+
+		private void header(ByteBuffer out, int opcode, int id, int length) {
+			if (id == Message.NO_ID) {
+				out.put((byte) opcode);
+				out.putShort((short) length);
+			} else {
+				out.put((byte) (opcode | Message.TAGGED));
+				out.putShort((short) (length + 4));
+				out.putInt(id);
+			}
+		}
+	};
+
+	/**
+	 * Size of the binary frame header: opcode and payload length.
+	 */
+	static final int HEADER = 3;
+
+	private static final byte[] PROP_TEXT = { 'P', 'R', 'O', 'P', ' ' };
+	private static final byte[] ACK_TEXT = { 'A', 'C', 'K', '\n' };
+	private static final byte[] NAK_TEXT = { 'N', 'A', 'K', '\n' };
+	private static final byte[] KEY_TEXT = { 'K', 'E', 'Y', ' ' };
+	private static final byte[] MODP_TEXT = { 'M', 'O', 'D', 'P', ' ' };
+	private static final byte[] CURVE_TEXT = { 'C', 'U', 'R', 'V', 'E', ' ' };
+
+	/**
+	 * Determines the format chosen by the active peer from the first byte it
+	 * sent.
+	 */
+	static WireFormat detect(byte first) {
+		int opcode = first & 0xFF & ~Message.TAGGED;
+		return opcode >= Message.PROP && opcode <= Message.CURVE ? BINARY : TEXT;
+	}
+
+	/**
+	 * Finds the first complete frame in <code>buf[from, to)</code>.
+	 *
+	 * @return The index after the frame, or -1 if the frame is incomplete.
+	 */
+	abstract int frame(ByteBuffer buf, int from, int to);
+
+	/**
+	 * Parses the complete frame <code>buf[from, end)</code> as found by
+	 * <code>frame()</code>.
+	 *
+	 * @return The type of the message, see <code>Message.parse()</code>.
+	 */
+	abstract int parse(Message message, ByteBuffer buf, int from, int end);
+
+	/*
+	 * Encoders of the messages. The exchange ID is Message.NO_ID for
+	 * connections carrying a single exchange.
+	 */
+
+	abstract void prop(ByteBuffer out, int id, int a, int n);
+
+	abstract void ack(ByteBuffer out, int id);
+
+	abstract void nak(ByteBuffer out, int id);
+
+	abstract void modp(ByteBuffer out, int id, int group);
+
+	abstract void curve(ByteBuffer out, int id, NamedCurve curve);
+
+	abstract void key(ByteBuffer out, int id, long key);
+
+	/**
+	 * Encodes a key given as big-endian unsigned magnitude, e.g. of a MODP
+	 * group or a curve.
+	 */
+	abstract void key(ByteBuffer out, int id, byte[] magnitude, int length);
+
+	/**
+	 * Writes the decimal representation of a value without creating a
+	 * String.
+	 */
+	private static void putDecimal(ByteBuffer out, long value) {
+		if (value == 0) {
+			out.put((byte) '0');
+			return;
+		}
+		if (value < 0) {
+			out.put((byte) '-');
+		} else {
+			// work on the negative value, so that Long.MIN_VALUE fits as well
+			value = -value;
+		}
+
+		int digits = 0;
+		for (long v = value; v != 0; v /= 10) {
+			digits++;
+		}
+
+		int end = out.position() + digits;
+		for (int i = end - 1; i >= end - digits; i--) {
+			out.put(i, (byte) ('0' - value % 10));
+			value /= 10;
+		}
+		out.position(end);
+	}
+
+	/**
+	 * Writes the decimal representation of an unsigned magnitude. The
+	 * magnitude is converted to 32-bit limbs and divided by 10^9 repeatedly,
+	 * which yields the digits in chunks of nine from the least significant
+	 * end.
+	 */
+	private static void putDecimal(ByteBuffer out, byte[] magnitude, int length) {
+		// big-endian limbs
+		int[] limbs = new int[(length + 3) / 4];
+		for (int i = 0; i < length; i++) {
+			int bit = 8 * (length - 1 - i);
+			limbs[limbs.length - 1 - bit / 32] |= (magnitude[i] & 0xFF) << (bit % 32);
+		}
+
+		int[] chunks = new int[(length * 8 + 29) / 29 + 1];
+		int count = 0;
+		int first = 0;
+		do {
+			long remainder = 0;
+			for (int i = first; i < limbs.length; i++) {
+				long dividend = remainder << 32 | (limbs[i] & 0xFFFFFFFFL);
+				limbs[i] = (int) (dividend / 1000000000);
+				remainder = dividend % 1000000000;
+			}
+			chunks[count++] = (int) remainder;
+			while (first < limbs.length && limbs[first] == 0) {
+				first++;
+			}
+		} while (first < limbs.length);
+
+		putDecimal(out, chunks[count - 1]);
+		for (int i = count - 2; i >= 0; i--) {
+			int end = out.position() + 9;
+			int chunk = chunks[i];
+			for (int j = end - 1; j >= end - 9; j--) {
+				out.put(j, (byte) ('0' + chunk % 10));
+				chunk /= 10;
+			}
+			out.position(end);
+		}
+	}
+}
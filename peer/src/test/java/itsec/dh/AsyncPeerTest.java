@@ -0,0 +1,51 @@
+package itsec.dh;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class AsyncPeerTest {
+
+	private static final GroupParameters GROUP = new GroupParameters(BigInteger.valueOf(1019), BigInteger.valueOf(2));
+
+	@Test
+	void initiateAfterCloseFails() throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			AsyncPeer peer = new AsyncPeer(WireFormat.TEXT);
+			peer.close();
+
+			CompletableFuture<SharedKey> key = peer
+					.initiate(new InetSocketAddress(server.getInetAddress(), server.getLocalPort()), GROUP);
+			ExecutionException e = assertThrows(ExecutionException.class, () -> key.get(5, TimeUnit.SECONDS));
+			assertInstanceOf(ClosedChannelException.class, e.getCause());
+
+			// a closed peer must not open a connection
+			server.setSoTimeout(200);
+			assertThrows(SocketTimeoutException.class, server::accept);
+		}
+	}
+
+	@Test
+	void groupBeyondIntFailsAtOnce() throws IOException {
+		try (AsyncPeer peer = new AsyncPeer(WireFormat.TEXT)) {
+			GroupParameters group = new GroupParameters(BigInteger.ONE.shiftLeft(40).add(BigInteger.valueOf(15)),
+					BigInteger.valueOf(2));
+			CompletableFuture<SharedKey> key = peer.initiate(new InetSocketAddress(InetAddress.getLoopbackAddress(), 1),
+					group);
+			ExecutionException e = assertThrows(ExecutionException.class, key::get);
+			assertInstanceOf(ArithmeticException.class, e.getCause());
+		}
+	}
+}
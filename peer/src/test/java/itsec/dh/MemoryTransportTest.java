@@ -0,0 +1,150 @@
+package itsec.dh;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class MemoryTransportTest {
+
+	private static <T> FutureTask<T> start(Callable<T> task) {
+		FutureTask<T> future = new FutureTask<>(task);
+		Thread thread = new Thread(future);
+		thread.setDaemon(true);
+		thread.start();
+		return future;
+	}
+
+	/**
+	 * Waits until the thread of a task is parked in the ring buffer.
+	 */
+	private static Thread awaitParked(Thread[] holder) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (System.nanoTime() < deadline) {
+			Thread thread = holder[0];
+			if (thread != null && thread.getState() == Thread.State.WAITING) {
+				return thread;
+			}
+			Thread.sleep(1);
+		}
+		throw new AssertionError("The thread did not block.");
+	}
+
+	@Test
+	void producerAndConsumer() throws Exception {
+		Transport[] ends = MemoryTransport.pair(16);
+		byte[] data = new byte[1 << 20];
+		new Random(1).nextBytes(data);
+
+		FutureTask<Void> producer = start(() -> {
+			OutputStream out = ends[0].output();
+			Random sizes = new Random(2);
+			for (int off = 0; off < data.length;) {
+				int len = Math.min(sizes.nextInt(40), data.length - off);
+				if (len == 1) {
+					out.write(data[off]);
+				} else {
+					out.write(data, off, len);
+				}
+				off += len;
+			}
+			ends[0].close();
+			return null;
+		});
+
+		InputStream in = ends[1].input();
+		// one byte more, so that reading the end of the stream has room
+		byte[] received = new byte[data.length + 1];
+		Random sizes = new Random(3);
+		int length = 0;
+		while (true) {
+			int n = in.read(received, length, Math.min(1 + sizes.nextInt(40), received.length - length));
+			if (n < 0) {
+				break;
+			}
+			length += n;
+		}
+		producer.get(10, TimeUnit.SECONDS);
+		assertEquals(data.length, length);
+		assertArrayEquals(data, Arrays.copyOf(received, length));
+	}
+
+	@Test
+	void closeEndsTheStream() throws IOException {
+		Transport[] ends = MemoryTransport.pair(8);
+		ends[0].output().write(new byte[] { 1, 2, 3 });
+		ends[0].close();
+
+		InputStream in = ends[1].input();
+		assertEquals(3, in.available());
+		assertEquals(1, in.read());
+		byte[] rest = new byte[8];
+		assertEquals(2, in.read(rest, 0, rest.length));
+		assertEquals(-1, in.read());
+		assertThrows(IOException.class, () -> ends[1].output().write(4));
+	}
+
+	@Test
+	void closeWakesABlockedReader() throws Exception {
+		Transport[] ends = MemoryTransport.pair(8);
+		Thread[] reader = new Thread[1];
+		FutureTask<Integer> read = start(() -> {
+			reader[0] = Thread.currentThread();
+			return ends[1].input().read();
+		});
+		awaitParked(reader);
+		ends[0].close();
+		assertEquals(-1, read.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void interruptedReader() throws Exception {
+		Transport[] ends = MemoryTransport.pair(8);
+		Thread[] reader = new Thread[1];
+		FutureTask<Integer> read = start(() -> {
+			reader[0] = Thread.currentThread();
+			return ends[1].input().read();
+		});
+		awaitParked(reader).interrupt();
+		ExecutionException e = assertThrows(ExecutionException.class, () -> read.get(5, TimeUnit.SECONDS));
+		assertInstanceOf(InterruptedIOException.class, e.getCause());
+
+		// the connection still works
+		ends[0].output().write(7);
+		assertEquals(7, ends[1].input().read());
+	}
+
+	@Test
+	void interruptedWriter() throws Exception {
+		Transport[] ends = MemoryTransport.pair(8);
+		Thread[] writer = new Thread[1];
+		FutureTask<Void> write = start(() -> {
+			writer[0] = Thread.currentThread();
+			ends[0].output().write(new byte[9]);
+			return null;
+		});
+		awaitParked(writer).interrupt();
+		ExecutionException e = assertThrows(ExecutionException.class, () -> write.get(5, TimeUnit.SECONDS));
+		assertInstanceOf(InterruptedIOException.class, e.getCause());
+		assertEquals(8, ends[1].input().available());
+	}
+
+	@Test
+	void capacityMustBeAPowerOfTwo() {
+		assertThrows(IllegalArgumentException.class, () -> MemoryTransport.pair(12));
+		assertThrows(IllegalArgumentException.class, () -> MemoryTransport.pair(0));
+	}
+}
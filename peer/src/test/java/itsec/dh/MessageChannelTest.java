@@ -0,0 +1,199 @@
+package itsec.dh;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MessageChannelTest {
+
+	private Reactor reactor;
+	private ServerSocket server;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		reactor = new Reactor("message-channel-test");
+		server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		reactor.close();
+		server.close();
+	}
+
+	private InetSocketAddress address() {
+		return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+	}
+
+	private MessageChannel connect(int idleTimeout) throws Exception {
+		return MessageChannel.connect(reactor, address(), WireFormat.TEXT, 1000, idleTimeout).get(5, TimeUnit.SECONDS);
+	}
+
+	private static <T> T get(CompletableFuture<T> future) throws Exception {
+		return future.get(5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return The cause of the failure of the future.
+	 */
+	private static Throwable failure(CompletableFuture<?> future) {
+		return assertThrows(ExecutionException.class, () -> get(future)).getCause();
+	}
+
+	private static void write(Socket socket, String text) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(text.getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+
+	@Test
+	void sendsAndReceives() throws Exception {
+		MessageChannel channel = connect(0);
+		try (Socket peer = server.accept()) {
+			get(channel.send((format, out) -> format.prop(out, Message.NO_ID, 5, 1019)));
+			byte[] expected = "PROP 5 1019\n".getBytes(StandardCharsets.US_ASCII);
+			byte[] received = peer.getInputStream().readNBytes(expected.length);
+			assertEquals(new String(expected, StandardCharsets.US_ASCII),
+					new String(received, StandardCharsets.US_ASCII));
+
+			// both messages in one segment, the second one is kept for the next receive
+			write(peer, "ACK\nKEY 42\nNA");
+			assertEquals(Message.ACK, get(channel.receive()).type());
+			Message key = get(channel.receive());
+			assertEquals(Message.KEY, key.type());
+			assertEquals(42, key.key());
+
+			CompletableFuture<Message> nak = channel.receive();
+			write(peer, "K\n");
+			assertEquals(Message.NAK, get(nak).type());
+		}
+		channel.close();
+	}
+
+	@Test
+	void idleTimeoutFailsReceive() throws Exception {
+		MessageChannel channel = connect(100);
+		try (Socket peer = server.accept()) {
+			assertInstanceOf(SocketTimeoutException.class, failure(channel.receive()));
+			// the channel is closed after a failure
+			assertInstanceOf(SocketTimeoutException.class, failure(channel.receive()));
+			assertEquals(-1, peer.getInputStream().read());
+		}
+	}
+
+	@Test
+	void endOfStreamBetweenMessages() throws Exception {
+		MessageChannel channel = connect(0);
+		try (Socket peer = server.accept()) {
+			write(peer, "ACK\n");
+			peer.shutdownOutput();
+			assertEquals(Message.ACK, get(channel.receive()).type());
+			assertInstanceOf(EOFException.class, failure(channel.receive()));
+		}
+	}
+
+	@Test
+	void endOfStreamWithinMessage() throws Exception {
+		MessageChannel channel = connect(0);
+		try (Socket peer = server.accept()) {
+			write(peer, "PROP 5");
+			peer.shutdownOutput();
+			Throwable e = failure(channel.receive());
+			assertEquals(IOException.class, e.getClass());
+		}
+	}
+
+	@Test
+	void oversizedMessage() throws Exception {
+		MessageChannel channel = connect(0);
+		try (Socket peer = server.accept()) {
+			CompletableFuture<Message> receive = channel.receive();
+			write(peer, "KEY " + "1".repeat(Message.MAX_LENGTH));
+			Throwable e = failure(receive);
+			assertEquals(IOException.class, e.getClass());
+		}
+	}
+
+	@Test
+	void closeFailsPendingFutures() throws Exception {
+		MessageChannel channel = connect(0);
+		try (Socket peer = server.accept()) {
+			CompletableFuture<Message> receive = channel.receive();
+			channel.close();
+			assertInstanceOf(ClosedChannelException.class, failure(receive));
+			assertInstanceOf(ClosedChannelException.class,
+					failure(channel.send((format, out) -> format.ack(out, Message.NO_ID))));
+			assertEquals(-1, peer.getInputStream().read());
+		}
+	}
+
+	@Test
+	void closingTheReactorFailsPendingFutures() throws Exception {
+		MessageChannel channel = connect(0);
+		try (Socket peer = server.accept()) {
+			CompletableFuture<Message> receive = channel.receive();
+			reactor.close();
+			assertInstanceOf(ClosedChannelException.class, failure(receive));
+			assertInstanceOf(ClosedChannelException.class, failure(channel.receive()));
+		}
+	}
+
+	@Test
+	void connectAndRegisterOnAClosedReactorFail() throws Exception {
+		reactor.close();
+		assertInstanceOf(ClosedChannelException.class,
+				failure(MessageChannel.connect(reactor, address(), WireFormat.TEXT, 1000, 0)));
+
+		SocketChannel socket = SocketChannel.open(address());
+		try (Socket peer = server.accept()) {
+			assertInstanceOf(ClosedChannelException.class,
+					failure(MessageChannel.register(reactor, socket, null, 0)));
+			assertFalse(socket.isOpen());
+		}
+	}
+
+	@Test
+	void connectionRefused() throws Exception {
+		InetSocketAddress address = address();
+		server.close();
+		assertInstanceOf(IOException.class,
+				failure(MessageChannel.connect(reactor, address, WireFormat.TEXT, 1000, 0)));
+	}
+
+	@Test
+	void detectsTheFormatOfThePeer() throws Exception {
+		try (SocketChannel passive = SocketChannel.open(address()); Socket active = server.accept()) {
+			MessageChannel channel = get(MessageChannel.register(reactor, passive, null, 0));
+			active.getOutputStream().write(new byte[] { Message.ACK, 0, 0 });
+			assertEquals(Message.ACK, get(channel.receive()).type());
+			assertEquals(WireFormat.BINARY, channel.format());
+
+			get(channel.send((format, out) -> format.nak(out, Message.NO_ID)));
+			InputStream in = active.getInputStream();
+			assertEquals(Message.NAK, in.read());
+			assertEquals(0, in.read());
+			assertEquals(0, in.read());
+		}
+	}
+}
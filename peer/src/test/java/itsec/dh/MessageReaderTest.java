@@ -0,0 +1,246 @@
+package itsec.dh;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class MessageReaderTest {
+
+	/**
+	 * Stream which returns at most <code>chunk</code> bytes per read, like a
+	 * socket receiving small segments.
+	 */
+	private static final class ChunkedStream extends InputStream {
+
+		private final byte[] bytes;
+		private final int chunk;
+		private int position;
+
+		ChunkedStream(byte[] bytes, int chunk) {
+			this.bytes = bytes;
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int read() {
+			return position < bytes.length ? bytes[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position == bytes.length) {
+				return -1;
+			}
+			int n = Math.min(Math.min(len, chunk), bytes.length - position);
+			System.arraycopy(bytes, position, b, off, n);
+			position += n;
+			return n;
+		}
+	}
+
+	private static byte[] encode(WireFormat format) {
+		ByteBuffer out = ByteBuffer.allocate(8 * Message.MAX_LENGTH);
+		format.prop(out, Message.NO_ID, 5, 1019);
+		format.ack(out, Message.NO_ID);
+		format.nak(out, 42);
+		format.modp(out, Message.NO_ID, 16);
+		format.curve(out, 7, NamedCurve.X448);
+		format.key(out, Message.NO_ID, 123456789L);
+		format.key(out, Integer.MAX_VALUE, 0L);
+		byte[] big = bigKey();
+		format.key(out, Message.NO_ID, big, big.length);
+		return Arrays.copyOf(out.array(), out.position());
+	}
+
+	/**
+	 * @return The magnitude of a key of the 4096-bit MODP group, the longest
+	 *         message of the protocol.
+	 */
+	private static byte[] bigKey() {
+		byte[] key = new byte[512];
+		Arrays.fill(key, (byte) 0xFF);
+		return key;
+	}
+
+	private static void assertMessages(MessageReader reader) throws IOException {
+		Message message = reader.read();
+		assertEquals(Message.PROP, message.type());
+		assertEquals(Message.NO_ID, message.id());
+		assertEquals(5, message.a());
+		assertEquals(1019, message.n());
+
+		assertEquals(Message.ACK, reader.read().type());
+
+		message = reader.read();
+		assertEquals(Message.NAK, message.type());
+		assertEquals(42, message.id());
+
+		message = reader.read();
+		assertEquals(Message.MODP, message.type());
+		assertEquals(16, message.group());
+
+		message = reader.read();
+		assertEquals(Message.CURVE, message.type());
+		assertEquals(7, message.id());
+		assertEquals(NamedCurve.X448, message.curve());
+
+		message = reader.read();
+		assertEquals(Message.KEY, message.type());
+		assertEquals(123456789L, message.key());
+
+		message = reader.read();
+		assertEquals(Message.KEY, message.type());
+		assertEquals(Integer.MAX_VALUE, message.id());
+		assertEquals(0L, message.key());
+		assertEquals(1, message.keyLength());
+
+		message = reader.read();
+		assertEquals(Message.KEY, message.type());
+		assertEquals(-1L, message.key());
+		assertArrayEquals(bigKey(), Arrays.copyOf(message.keyMagnitude(), message.keyLength()));
+
+		assertThrows(EOFException.class, reader::read);
+	}
+
+	private static MessageReader reader(String text) {
+		return new MessageReader(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	private static MessageReader reader(int... bytes) {
+		byte[] b = new byte[bytes.length];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) bytes[i];
+		}
+		return new MessageReader(new ByteArrayInputStream(b));
+	}
+
+	@Test
+	void textRoundTrip() throws IOException {
+		byte[] bytes = encode(WireFormat.TEXT);
+		for (int chunk : new int[] { 1, 7, bytes.length }) {
+			MessageReader reader = new MessageReader(new ChunkedStream(bytes, chunk));
+			assertMessages(reader);
+			assertEquals(WireFormat.TEXT, reader.format());
+		}
+	}
+
+	@Test
+	void binaryRoundTrip() throws IOException {
+		byte[] bytes = encode(WireFormat.BINARY);
+		for (int chunk : new int[] { 1, 7, bytes.length }) {
+			MessageReader reader = new MessageReader(new ChunkedStream(bytes, chunk));
+			assertMessages(reader);
+			assertEquals(WireFormat.BINARY, reader.format());
+		}
+	}
+
+	@Test
+	void binaryKeyWithLeadingZeros() throws IOException {
+		Message message = reader(Message.KEY, 0, 9, 0, 0, 0, 0, 0, 0, 0, 1, 2).read();
+		assertEquals(Message.KEY, message.type());
+		assertEquals(0x102L, message.key());
+
+		message = reader(Message.KEY, 0, 8, 0x80, 0, 0, 0, 0, 0, 0, 0).read();
+		assertEquals(Message.KEY, message.type());
+		assertEquals(-1L, message.key());
+		assertEquals(8, message.keyLength());
+	}
+
+	@Test
+	void malformedFramesAreUnknown() throws IOException {
+		int[][] frames = { { Message.PROP, 0, 4, 0, 0, 0, 5 }, { Message.ACK, 0, 1, 0 }, { Message.KEY, 0, 0 },
+				{ Message.MODP, 0, 2, 0, 14 }, { Message.CURVE, 0, 4, 0, 0, 0, 0x1D },
+				{ Message.ACK | Message.TAGGED, 0, 2, 0, 1 },
+				{ Message.ACK | Message.TAGGED, 0, 4, 0x80, 0, 0, 1 } };
+		for (int[] frame : frames) {
+			int[] bytes = Arrays.copyOf(frame, frame.length + 3);
+			bytes[frame.length] = Message.ACK;
+			MessageReader reader = reader(bytes);
+			assertEquals(Message.UNKNOWN, reader.read().type(), Arrays.toString(frame));
+			// the reader stays in sync
+			assertEquals(Message.ACK, reader.read().type(), Arrays.toString(frame));
+		}
+	}
+
+	@Test
+	void truncatedFrame() {
+		int[][] frames = { { Message.ACK | Message.TAGGED }, { Message.PROP, 0 }, { Message.PROP, 0, 8, 0, 0, 0, 5 } };
+		for (int[] frame : frames) {
+			IOException e = assertThrows(IOException.class, reader(frame)::read);
+			assertEquals(IOException.class, e.getClass(), Arrays.toString(frame));
+		}
+	}
+
+	@Test
+	void oversizedFrame() {
+		int[] frame = new int[Message.MAX_LENGTH + 1];
+		frame[0] = Message.KEY;
+		frame[1] = Message.MAX_LENGTH >>> 8;
+		frame[2] = Message.MAX_LENGTH & 0xFF;
+		IOException e = assertThrows(IOException.class, reader(frame)::read);
+		assertEquals(IOException.class, e.getClass());
+	}
+
+	@Test
+	void textKeyOfMaximumLength() throws IOException {
+		BigInteger key = BigInteger.ONE.shiftLeft(4096).subtract(BigInteger.ONE);
+		Message message = reader("KEY " + key + "\n").read();
+		assertEquals(Message.KEY, message.type());
+		assertEquals(key, new BigInteger(1, Arrays.copyOf(message.keyMagnitude(), message.keyLength())));
+	}
+
+	@Test
+	void carriageReturnAndSpaces() throws IOException {
+		MessageReader reader = reader("ACK\r\nPROP   5  1019\r\n");
+		assertEquals(Message.ACK, reader.read().type());
+		Message message = reader.read();
+		assertEquals(Message.PROP, message.type());
+		assertEquals(1019, message.n());
+	}
+
+	@Test
+	void malformedLinesAreUnknown() throws IOException {
+		String[] lines = { "", "HELLO", "PROP 5", "PROP 5 x", "PROP 5 99999999999", "KEY", "KEY x", "ACKS", "#x ACK",
+				"#99999999999 ACK", "# ACK", "MODP", "CURVE", "CURVE " };
+		for (String line : lines) {
+			MessageReader reader = reader(line + "\nACK\n");
+			assertEquals(Message.UNKNOWN, reader.read().type(), line);
+			// the reader stays in sync
+			assertEquals(Message.ACK, reader.read().type(), line);
+		}
+	}
+
+	@Test
+	void truncatedMessage() throws IOException {
+		assertThrows(EOFException.class, () -> reader("").read());
+
+		MessageReader reader = reader("ACK\nPROP 5 10");
+		assertEquals(Message.ACK, reader.read().type());
+		IOException e = assertThrows(IOException.class, reader::read);
+		assertEquals(IOException.class, e.getClass());
+	}
+
+	@Test
+	void oversizedMessage() {
+		char[] line = new char[Message.MAX_LENGTH];
+		Arrays.fill(line, '1');
+		line[0] = 'K';
+		line[1] = 'E';
+		line[2] = 'Y';
+		line[3] = ' ';
+		MessageReader reader = reader(new String(line) + "\n");
+		IOException e = assertThrows(IOException.class, reader::read);
+		assertEquals(IOException.class, e.getClass());
+	}
+}
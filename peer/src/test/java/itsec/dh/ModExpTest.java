@@ -0,0 +1,59 @@
+package itsec.dh;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class ModExpTest {
+
+	private static final int[] MODULI = { 1, 2, 3, 4, 5, 1019, 65536, 2147483647, 2147483646, 2147483629, 1000000007 };
+
+	@Test
+	void squareMultiplyMatchesModPow() {
+		Random rng = new Random(1);
+		for (int mod : MODULI) {
+			for (int i = 0; i < 1000; i++) {
+				long base = rng.nextLong();
+				long exp = rng.nextLong() & Long.MAX_VALUE;
+				assertEquals(ModExp.bigInteger(base, exp, mod), ModExp.squareMultiply(base, exp, mod),
+						base + "^" + exp + " mod " + mod);
+			}
+		}
+	}
+
+	@Test
+	void montgomeryMatchesModPow() {
+		Random rng = new Random(2);
+		for (int mod : MODULI) {
+			if ((mod & 1) == 0) {
+				continue;
+			}
+			for (int i = 0; i < 1000; i++) {
+				long base = rng.nextLong();
+				long exp = rng.nextLong() & Long.MAX_VALUE;
+				assertEquals(ModExp.bigInteger(base, exp, mod), ModExp.montgomery(base, exp, mod),
+						base + "^" + exp + " mod " + mod);
+			}
+		}
+	}
+
+	@Test
+	void edgeExponentsAndBases() {
+		long[] bases = { 0, 1, -1, 2, Long.MIN_VALUE, Long.MAX_VALUE, 2147483646, 2147483647 };
+		long[] exps = { 0, 1, 2, 3, Long.MAX_VALUE };
+		for (int mod : MODULI) {
+			for (long base : bases) {
+				for (long exp : exps) {
+					long expected = ModExp.bigInteger(base, exp, mod);
+					assertEquals(expected, ModExp.pow(base, exp, mod), base + "^" + exp + " mod " + mod);
+					assertEquals(expected, ModExp.squareMultiply(base, exp, mod), base + "^" + exp + " mod " + mod);
+					if ((mod & 1) == 1) {
+						assertEquals(expected, ModExp.montgomery(base, exp, mod), base + "^" + exp + " mod " + mod);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package itsec.dh;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class MontgomeryContextTest {
+
+	@Test
+	void powMatchesModPow() {
+		Random rng = new Random(1);
+		for (ModpGroup group : ModpGroup.values()) {
+			BigInteger p = group.parameters().p();
+			MontgomeryContext context = group.context();
+			for (int i = 0; i < 10; i++) {
+				BigInteger base = new BigInteger(p.bitLength() - 1, rng);
+				BigInteger exp = new BigInteger(512, rng);
+				long[] result = context.newResidue();
+				context.pow(MontgomeryContext.toLimbs(base, context.limbs()),
+						MontgomeryContext.toLimbs(exp, exp.bitLength() / 64 + 1), result);
+				assertEquals(base.modPow(exp, p), MontgomeryContext.toBigInteger(result));
+			}
+		}
+	}
+
+	@Test
+	void powGeneratorMatchesModPow() {
+		Random rng = new Random(2);
+		for (ModpGroup group : ModpGroup.values()) {
+			GroupParameters parameters = group.parameters();
+			MontgomeryContext context = group.context();
+			for (int bits : new int[] { 0, 1, 4, 63, 64, 65, 256, 512, 1000 }) {
+				BigInteger exp = new BigInteger(bits, rng);
+				long[] result = context.newResidue();
+				context.powGenerator(MontgomeryContext.toLimbs(exp, bits / 64 + 1), result);
+				assertEquals(parameters.g().modPow(exp, parameters.p()), MontgomeryContext.toBigInteger(result),
+						"2^" + exp);
+			}
+		}
+	}
+
+	@Test
+	void smallModulus() {
+		BigInteger p = BigInteger.valueOf(1019);
+		BigInteger g = BigInteger.valueOf(2);
+		MontgomeryContext context = new MontgomeryContext(p, g);
+		long[] result = context.newResidue();
+		for (long exp = 0; exp < 2100; exp++) {
+			context.powGenerator(new long[] { exp }, result);
+			assertArrayEquals(new long[] { g.modPow(BigInteger.valueOf(exp), p).longValue() }, result, "2^" + exp);
+			context.pow(new long[] { 7 }, new long[] { exp }, result);
+			assertArrayEquals(new long[] { BigInteger.valueOf(7).modPow(BigInteger.valueOf(exp), p).longValue() },
+					result, "7^" + exp);
+		}
+	}
+}
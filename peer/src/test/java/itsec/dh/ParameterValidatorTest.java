@@ -0,0 +1,147 @@
+package itsec.dh;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+class ParameterValidatorTest {
+
+	private static final int SMALL = 1 << 16;
+
+	private static boolean[] sieve(int limit) {
+		boolean[] prime = new boolean[limit];
+		for (int i = 2; i < limit; i++) {
+			prime[i] = true;
+		}
+		for (int i = 2; i * i < limit; i++) {
+			if (prime[i]) {
+				for (int j = i * i; j < limit; j += i) {
+					prime[j] = false;
+				}
+			}
+		}
+		return prime;
+	}
+
+	@Test
+	void isPrimeMatchesSieve() {
+		boolean[] prime = sieve(SMALL);
+		for (int n = -3; n < SMALL; n++) {
+			assertEquals(n >= 0 && prime[n], ParameterValidator.isPrime(n), Integer.toString(n));
+		}
+	}
+
+	@Test
+	void isPrimeMatchesBigInteger() {
+		Random rng = new Random(1);
+		for (int bits = 17; bits <= 63; bits++) {
+			for (int i = 0; i < 200; i++) {
+				long n = new BigInteger(bits, rng).longValue() | 1;
+				assertEquals(BigInteger.valueOf(n).isProbablePrime(100), ParameterValidator.isPrime(n),
+						Long.toString(n));
+			}
+			long p = BigInteger.probablePrime(bits, rng).longValue();
+			assertTrue(ParameterValidator.isPrime(p), Long.toString(p));
+		}
+	}
+
+	@Test
+	void isPrimeRejectsPseudoprimes() {
+		// Carmichael numbers and strong pseudoprimes to the smallest bases
+		long[] composites = { 561, 1105, 1729, 2047, 3215031751L, 2152302898747L, 3474749660383L,
+				341550071728321L, 3825123056546413051L, Long.MAX_VALUE, 4611686014132420609L };
+		for (long n : composites) {
+			assertFalse(ParameterValidator.isPrime(n), Long.toString(n));
+		}
+		assertTrue(ParameterValidator.isPrime(2305843009213693951L));
+	}
+
+	@Test
+	void isPrimitiveRootMatchesBruteForce() {
+		boolean[] prime = sieve(2000);
+		for (int n = 2; n < prime.length; n++) {
+			if (!prime[n]) {
+				continue;
+			}
+			for (int a = -1; a <= n; a++) {
+				assertEquals(order(a, n) == n - 1, ParameterValidator.isPrimitiveRoot(a, n), a + " mod " + n);
+			}
+		}
+	}
+
+	/**
+	 * @return The multiplicative order of a modulo the prime n, 0 if a is no
+	 *         unit.
+	 */
+	private static int order(int a, int n) {
+		if (a <= 0 || a >= n) {
+			return 0;
+		}
+		long x = a;
+		int order = 1;
+		while (x != 1) {
+			x = x * a % n;
+			order++;
+		}
+		return order;
+	}
+
+	@Test
+	void isPrimitiveRootOfLargeSafePrimes() {
+		Random rng = new Random(2);
+		for (int bits : new int[] { 31, 48, 62 }) {
+			BigInteger p;
+			BigInteger q;
+			do {
+				q = BigInteger.probablePrime(bits - 1, rng);
+				p = q.shiftLeft(1).add(BigInteger.ONE);
+			} while (!p.isProbablePrime(100));
+
+			for (long a = 2; a < 200; a++) {
+				BigInteger g = BigInteger.valueOf(a);
+				boolean expected = !g.modPow(BigInteger.TWO, p).equals(BigInteger.ONE)
+						&& !g.modPow(q, p).equals(BigInteger.ONE);
+				assertEquals(expected, ParameterValidator.isPrimitiveRoot(a, p.longValue()), a + " mod " + p);
+			}
+		}
+	}
+
+	@Test
+	void primeFactorsOfLargeNumbers() {
+		long[][] cases = { { 1000003L, 1000033L }, { 2, 3, 4294967291L }, { 1048573L, 1048573L, 1048583L },
+				{ 2147483647L, 2147483629L }, { 3, 3074457345618258599L } };
+		for (long[] primes : cases) {
+			long value = 1;
+			for (long p : primes) {
+				value *= p;
+			}
+			TreeSet<Long> expected = new TreeSet<>();
+			for (long p : primes) {
+				expected.add(p);
+			}
+			List<Long> factors = ParameterValidator.primeFactors(value);
+			assertEquals(expected.size(), factors.size(), Long.toString(value));
+			assertEquals(expected, new TreeSet<>(factors), Long.toString(value));
+		}
+	}
+
+	@Test
+	void isValidIsStableAcrossTheCache() {
+		ParameterValidator validator = new ParameterValidator(4);
+		for (int round = 0; round < 2; round++) {
+			assertTrue(validator.isValid(2, 1019));
+			assertFalse(validator.isValid(4, 1019));
+			assertFalse(validator.isValid(2, 1021 * 1031));
+			assertFalse(validator.isValid(2, -1019));
+			assertTrue(validator.isValid(7, 2147483647));
+			assertFalse(validator.isValid(2, 2147483647));
+		}
+	}
+}